@@ -0,0 +1,81 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Aho-Corasick automaton, finds all of the patterns contained in a text with a single pass over the text.
+ */
+public class AhoCorasick {
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    private final List<Integer> failures = new ArrayList<>();
+    private final List<List<String>> outputs = new ArrayList<>();
+
+    public AhoCorasick(Collection<String> patterns) {
+        addNode();
+        for (String pattern : patterns) {
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = transitions.get(node).get(pattern.charAt(i));
+                if (next == null) {
+                    next = addNode();
+                    transitions.get(node).put(pattern.charAt(i), next);
+                }
+                node = next;
+            }
+            outputs.get(node).add(pattern);
+        }
+        buildFailures();
+    }
+
+    private int addNode() {
+        transitions.add(new HashMap<>());
+        failures.add(0);
+        outputs.add(new ArrayList<>());
+        return transitions.size() - 1;
+    }
+
+    private void buildFailures() {
+        Queue<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            for (Map.Entry<Character, Integer> entry : transitions.get(node).entrySet()) {
+                int child = entry.getValue();
+                int failure = failures.get(node);
+                while (failure != 0 && !transitions.get(failure).containsKey(entry.getKey())) {
+                    failure = failures.get(failure);
+                }
+                Integer target = transitions.get(failure).get(entry.getKey());
+                failures.set(child, target != null && target != child ? target : 0);
+                outputs.get(child).addAll(outputs.get(failures.get(child)));
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer for every occurrence of a pattern in the text.
+     */
+    public void match(CharSequence text, Consumer<String> consumer) {
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char character = text.charAt(i);
+            Integer next = transitions.get(node).get(character);
+            while (next == null && node != 0) {
+                node = failures.get(node);
+                next = transitions.get(node).get(character);
+            }
+            node = next != null ? next : 0;
+            for (String pattern : outputs.get(node)) {
+                consumer.accept(pattern);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the cpe records modified since a given date from the NVD CPE API 2.0. The API accepts at most 120
+ * days per query, longer periods are split into windows. The first page of a window tells the number of
+ * results, the remaining pages are then fetched in parallel within the rate limit.
+ */
+public class CPEApiIngest {
+    private static final int MAX_WINDOW_DAYS = 120;
+    private static final int RESULTS_PER_PAGE = 10000;
+    private static final int PARALLEL_REQUESTS = 4;
+
+    private final String apiUrl;
+    private final String apiKey;
+    private final RateLimiter rateLimiter;
+    private final Gson gson = new Gson();
+
+    public CPEApiIngest(String apiUrl, String apiKey, RateLimiter rateLimiter) {
+        this.apiUrl = apiUrl;
+        this.apiKey = apiKey;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return cleaned cpes of the records modified between the dates by library name (owner/repo) of every
+     * github or bitbucket reference and by product, later modifications win. Deprecated records are collected
+     * with the cpe that replaces them.
+     */
+    public CPEApiUpdates fetchModified(Date from, Date to) throws IOException, InterruptedException {
+        CPEApiUpdates updates = new CPEApiUpdates();
+        ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_REQUESTS);
+        try {
+            Instant windowStart = from.toInstant();
+            Instant end = to.toInstant();
+            while (windowStart.isBefore(end)) {
+                Instant windowEnd = windowStart.plus(MAX_WINDOW_DAYS, ChronoUnit.DAYS);
+                if (windowEnd.isAfter(end)) {
+                    windowEnd = end;
+                }
+
+                List<CPEApiProduct> products = fetchWindow(windowStart, windowEnd, executor);
+                LoggerHelper.log(LogLevel.DEBUG, "[i] " + products.size() + " cpe records modified between " + windowStart + " and " + windowEnd);
+                products.sort(Comparator.comparing(product -> product.cpe != null && product.cpe.lastModified != null ? product.cpe.lastModified : ""));
+                for (CPEApiProduct product : products) {
+                    apply(product.cpe, updates);
+                }
+
+                windowStart = windowEnd;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return updates;
+    }
+
+    private List<CPEApiProduct> fetchWindow(Instant start, Instant end, ExecutorService executor) throws IOException, InterruptedException {
+        String query = "lastModStartDate=" + NVDClient.dateFormat.format(start) + "&lastModEndDate=" + NVDClient.dateFormat.format(end);
+
+        CPEApiResponse first = fetchPage(query, 0);
+        List<CPEApiProduct> products = new ArrayList<>(first.products != null ? first.products : List.of());
+
+        int pageSize = first.resultsPerPage > 0 ? first.resultsPerPage : RESULTS_PER_PAGE;
+        List<Future<CPEApiResponse>> pages = new ArrayList<>();
+        for (int startIndex = pageSize; startIndex < first.totalResults; startIndex += pageSize) {
+            int pageStart = startIndex;
+            pages.add(executor.submit(() -> fetchPage(query, pageStart)));
+        }
+
+        for (Future<CPEApiResponse> page : pages) {
+            try {
+                CPEApiResponse response = page.get();
+                if (response.products != null) {
+                    products.addAll(response.products);
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        return products;
+    }
+
+    private CPEApiResponse fetchPage(String query, int startIndex) throws IOException, InterruptedException {
+        rateLimiter.acquire();
+
+        String url = apiUrl + "?" + query + "&resultsPerPage=" + RESULTS_PER_PAGE + "&startIndex=" + startIndex;
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Fetching cpe records: " + url);
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).GET();
+        if (apiKey != null && !apiKey.isEmpty()) {
+            request.header("apiKey", apiKey);
+        }
+
+        HttpTransport.Response response = HttpTransport.shared().send(request);
+        if (response.statusCode != 200) {
+            response.discard();
+            throw new IOException("Fetching cpe records failed. Response code: " + response.statusCode);
+        }
+
+        try (Reader reader = new InputStreamReader(response.body, StandardCharsets.UTF_8)) {
+            CPEApiResponse records = gson.fromJson(reader, CPEApiResponse.class);
+            if (records == null) {
+                throw new IOException("Empty response for cpe records");
+            }
+            return records;
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse cpe records: " + e.getMessage(), e);
+        }
+    }
+
+    private static void apply(CPEApiRecord record, CPEApiUpdates updates) {
+        if (record == null || record.cpeName == null) {
+            return;
+        }
+
+        String cleanedCpe = CPEFinder.cleanCPE(record.cpeName);
+        if (record.deprecated) {
+            String replacement = null;
+            if (record.deprecatedBy != null) {
+                for (CPEApiDeprecation deprecation : record.deprecatedBy) {
+                    if (deprecation.cpeName != null) {
+                        replacement = CPEFinder.cleanCPE(deprecation.cpeName);
+                        break;
+                    }
+                }
+            }
+            // other versions of the product may still be valid
+            if (!updates.valid.contains(cleanedCpe)) {
+                updates.deprecated.put(cleanedCpe, replacement);
+            }
+            return;
+        }
+        updates.valid.add(cleanedCpe);
+        updates.deprecated.remove(cleanedCpe);
+
+        String product = CPECandidateIndex.productKey(record.cpeName);
+        if (product != null) {
+            updates.products.put(product, cleanedCpe);
+        }
+        if (record.refs == null) {
+            return;
+        }
+        for (CPEApiReference reference : record.refs) {
+            String name = reference.ref != null ? CPEFinder.getNameFromUrl(reference.ref) : null;
+            if (name != null) {
+                updates.references.put(name, cleanedCpe);
+            }
+        }
+    }
+}
+
+class CPEApiUpdates {
+    public final Map<String, String> references = new LinkedHashMap<>();
+    public final Map<String, String> products = new LinkedHashMap<>();
+    // cleaned cpes of deprecated records, mapped to the cleaned cpe replacing them or to null
+    public final Map<String, String> deprecated = new HashMap<>();
+    final Set<String> valid = new HashSet<>();
+
+    public boolean isEmpty() {
+        return references.isEmpty() && products.isEmpty() && deprecated.isEmpty();
+    }
+
+    /**
+     * Replaces or removes the deprecated cpes among the values of the map.
+     */
+    public void replaceDeprecated(Map<String, String> values) {
+        values.entrySet().removeIf(entry -> {
+            if (!deprecated.containsKey(entry.getValue())) {
+                return false;
+            }
+            String replacement = deprecated.get(entry.getValue());
+            if (replacement == null) {
+                return true;
+            }
+            entry.setValue(replacement);
+            return false;
+        });
+    }
+}
+
+class CPEApiResponse {
+    public int resultsPerPage;
+    public int startIndex;
+    public int totalResults;
+    public List<CPEApiProduct> products;
+}
+
+class CPEApiProduct {
+    public CPEApiRecord cpe;
+}
+
+class CPEApiRecord {
+    public boolean deprecated;
+    public String cpeName;
+    public String lastModified;
+    public List<CPEApiReference> refs;
+    public List<CPEApiDeprecation> deprecatedBy;
+}
+
+class CPEApiDeprecation {
+    public String cpeName;
+    public String cpeNameId;
+}
+
+class CPEApiReference {
+    public String ref;
+    public String type;
+}
@@ -0,0 +1,170 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journal for the bulk build of cpes.json. Every parsed range of the cpe dictionary is appended to the journal
+ * when it completes, and cpes.json is written as a checkpoint now and then. After a crash the build continues
+ * from the last checkpoint plus the ranges found in the journal.
+ * <p>
+ * Journal lines are "range\tname\tcpe" followed by "range\t#done" once the range is complete.
+ */
+public class CPEBuildJournal implements AutoCloseable {
+    private static final String DONE = "#done";
+
+    private final Path journalPath;
+    private final Path checkpointPath;
+    private Writer writer;
+    public CPEBuildCheckpoint checkpoint;
+    public final Map<Integer, Map<String, String>> completed = new HashMap<>();
+
+    public CPEBuildJournal(Path folder) {
+        this.journalPath = folder.resolve("cpes.journal");
+        this.checkpointPath = folder.resolve("cpes.checkpoint");
+    }
+
+    /**
+     * Loads the checkpoint and the completed ranges of the journal.
+     * @return false if there is nothing to resume for a dictionary of this size and modification time
+     */
+    public boolean resume(long dictionarySize, long dictionaryModified) throws IOException {
+        if (!Files.exists(checkpointPath)) {
+            return false;
+        }
+
+        try {
+            checkpoint = new Gson().fromJson(Files.readString(checkpointPath, StandardCharsets.UTF_8), CPEBuildCheckpoint.class);
+        } catch (JsonParseException e) {
+            checkpoint = null;
+        }
+        if (checkpoint == null || checkpoint.ranges == null
+                || checkpoint.dictionarySize != dictionarySize || checkpoint.dictionaryModified != dictionaryModified) {
+            checkpoint = null;
+            return false;
+        }
+
+        if (Files.exists(journalPath)) {
+            Map<Integer, Map<String, String>> entries = new HashMap<>();
+            Set<Integer> done = new HashSet<>();
+            try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] components = line.split("\t");
+                    int range;
+                    try {
+                        range = Integer.parseInt(components[0]);
+                    } catch (NumberFormatException e) {
+                        continue; // torn line at the end of the journal
+                    }
+                    if (components.length == 2 && components[1].equals(DONE)) {
+                        done.add(range);
+                    } else if (components.length == 3) {
+                        entries.computeIfAbsent(range, key -> new LinkedHashMap<>()).put(components[1], components[2]);
+                    }
+                }
+            }
+            for (Integer range : done) {
+                if (range >= checkpoint.mergedRanges) {
+                    completed.put(range, entries.getOrDefault(range, new LinkedHashMap<>()));
+                }
+            }
+        }
+
+        writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return true;
+    }
+
+    public void start(long dictionarySize, long dictionaryModified, List<long[]> ranges) throws IOException {
+        checkpoint = new CPEBuildCheckpoint();
+        checkpoint.dictionarySize = dictionarySize;
+        checkpoint.dictionaryModified = dictionaryModified;
+        checkpoint.ranges = ranges;
+        checkpoint.mergedRanges = 0;
+        writeCheckpoint();
+
+        writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    public synchronized void append(int range, Map<String, String> found) throws IOException {
+        for (Map.Entry<String, String> entry : found.entrySet()) {
+            writer.write(range + "\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+        }
+        writer.write(range + "\t" + DONE + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Records that cpes.json now contains the first mergedRanges ranges and compacts the journal down to the
+     * ranges that are complete but not merged yet. cpes.json has to be saved before calling this.
+     */
+    public synchronized void checkpoint(int mergedRanges, Map<Integer, Map<String, String>> pending) throws IOException {
+        checkpoint.mergedRanges = mergedRanges;
+        writeCheckpoint();
+
+        writer.close();
+        Path temp = Files.createTempFile(journalPath.getParent(), "cpes.journal", ".tmp");
+        try {
+            try (BufferedWriter compacted = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<Integer, Map<String, String>> range : pending.entrySet()) {
+                    for (Map.Entry<String, String> entry : range.getValue().entrySet()) {
+                        compacted.write(range.getKey() + "\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+                    }
+                    compacted.write(range.getKey() + "\t" + DONE + "\n");
+                }
+            }
+            Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * The build is complete, nothing to resume anymore.
+     */
+    public void finish() throws IOException {
+        close();
+        Files.deleteIfExists(checkpointPath);
+        Files.deleteIfExists(journalPath);
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Path temp = Files.createTempFile(checkpointPath.getParent(), "cpes.checkpoint", ".tmp");
+        try {
+            Files.writeString(temp, new Gson().toJson(checkpoint), StandardCharsets.UTF_8);
+            Files.move(temp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
+
+class CPEBuildCheckpoint {
+    public long dictionarySize;
+    public long dictionaryModified;
+    public List<long[]> ranges;
+    public int mergedRanges;
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup of cpe products for library names that have no repository reference, like plain pod names.
+ * The products are stored as "vendor:product" to cleaned cpe in a sorted index file, next to it a second
+ * sorted index maps the normalised product name to the cpes of every vendor with a product of that name.
+ * <p>
+ * A name only resolves to a product of exactly that normalised name, and only if the vendor has the same
+ * name too or no other vendor has a product of that name. Similar names like "alamofireimage" for the
+ * product "alamofire" are never used as cpe. The trigram ranking of similar products is built in memory
+ * on the first call of candidates, find does not need it.
+ */
+public class CPECandidateIndex implements AutoCloseable {
+    private final SortedIndex productIndex;
+    private final SortedIndex nameIndex;
+
+    private List<String> products;
+    private List<String> cpes;
+    private Map<String, int[]> postings;
+    private int[] trigramCounts;
+
+    public static class Candidate {
+        public final String product;
+        public final String cpe;
+        public final double score;
+
+        Candidate(String product, String cpe, double score) {
+            this.product = product;
+            this.cpe = cpe;
+            this.score = score;
+        }
+    }
+
+    private CPECandidateIndex(SortedIndex productIndex, SortedIndex nameIndex) {
+        this.productIndex = productIndex;
+        this.nameIndex = nameIndex;
+    }
+
+    /**
+     * Opens the product index, the name index is written first if it is missing.
+     */
+    public static CPECandidateIndex open(Path path) throws IOException {
+        SortedIndex productIndex = SortedIndex.open(path);
+        try {
+            Path namesPath = namesPath(path);
+            if (!Files.exists(namesPath)) {
+                Map<String, String> products = new HashMap<>();
+                productIndex.forEach(products::put);
+                SortedIndex.write(namesPath, names(products));
+            }
+            return new CPECandidateIndex(productIndex, SortedIndex.open(namesPath));
+        } catch (IOException e) {
+            productIndex.close();
+            throw e;
+        }
+    }
+
+    public static void write(Path path, Map<String, String> products) throws IOException {
+        SortedIndex.write(namesPath(path), names(products));
+        SortedIndex.write(path, products);
+    }
+
+    private static Path namesPath(Path path) {
+        return path.resolveSibling(path.getFileName().toString().replaceFirst("\\.bin$", "") + "-names.bin");
+    }
+
+    private static Map<String, String> names(Map<String, String> products) {
+        Map<String, String> names = new HashMap<>();
+        for (Map.Entry<String, String> entry : products.entrySet()) {
+            String name = normalise(productName(entry.getKey()));
+            if (!name.isEmpty()) {
+                names.merge(name, entry.getValue(), (cpes, cpe) -> cpes + " " + cpe);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return "vendor:product" of an application cpe or null for other cpes
+     */
+    public static String productKey(String cpe23) {
+        String[] components = cpe23.toLowerCase().split(":");
+        if (components.length < 5 || !components[2].equals("a")) {
+            return null;
+        }
+        return components[3] + ":" + components[4];
+    }
+
+    static String normalise(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char character = Character.toLowerCase(value.charAt(i));
+            if ((character >= 'a' && character <= 'z') || (character >= '0' && character <= '9')) {
+                builder.append(character);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static List<String> trigrams(String value) {
+        String padded = "^" + value + "$";
+        List<String> trigrams = new ArrayList<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            String trigram = padded.substring(i, i + 3);
+            if (!trigrams.contains(trigram)) {
+                trigrams.add(trigram);
+            }
+        }
+        return trigrams;
+    }
+
+    private static String productName(String product) {
+        int separator = product.indexOf(':');
+        return separator >= 0 ? product.substring(separator + 1) : product;
+    }
+
+    private static String vendorName(String product) {
+        int separator = product.indexOf(':');
+        return separator >= 0 ? product.substring(0, separator) : "";
+    }
+
+    private synchronized void buildPostings() {
+        if (postings != null) {
+            return;
+        }
+        List<String> products = new ArrayList<>();
+        List<String> cpes = new ArrayList<>();
+        productIndex.forEach((product, cpe) -> {
+            products.add(product);
+            cpes.add(cpe);
+        });
+
+        Map<String, List<Integer>> lists = new HashMap<>();
+        int[] trigramCounts = new int[products.size()];
+        for (int i = 0; i < products.size(); i++) {
+            List<String> trigrams = trigrams(normalise(productName(products.get(i))));
+            trigramCounts[i] = trigrams.size();
+            for (String trigram : trigrams) {
+                lists.computeIfAbsent(trigram, key -> new ArrayList<>()).add(i);
+            }
+        }
+        Map<String, int[]> postings = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        this.products = products;
+        this.cpes = cpes;
+        this.trigramCounts = trigramCounts;
+        this.postings = postings;
+    }
+
+    public int size() {
+        return productIndex.size();
+    }
+
+    /**
+     * @return at most limit similar products for the name, best first. The score is the dice coefficient of the
+     * trigrams of the name and the product, ties go to products whose vendor is the product itself.
+     */
+    public List<Candidate> candidates(String name, int limit) {
+        String query = normalise(name);
+        List<Candidate> candidates = new ArrayList<>();
+        if (query.isEmpty()) {
+            return candidates;
+        }
+        buildPostings();
+
+        List<String> queryTrigrams = trigrams(query);
+        Map<Integer, Integer> shared = new HashMap<>();
+        for (String trigram : queryTrigrams) {
+            int[] products = postings.get(trigram);
+            if (products != null) {
+                for (int product : products) {
+                    shared.merge(product, 1, Integer::sum);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+            int product = entry.getKey();
+            double score = 2.0 * entry.getValue() / (queryTrigrams.size() + trigramCounts[product]);
+            candidates.add(new Candidate(products.get(product), cpes.get(product), score));
+        }
+
+        candidates.sort((a, b) -> {
+            int compared = Double.compare(b.score, a.score);
+            if (compared != 0) {
+                return compared;
+            }
+            return Boolean.compare(isVendorProduct(b.product), isVendorProduct(a.product));
+        });
+        return candidates.size() > limit ? new ArrayList<>(candidates.subList(0, limit)) : candidates;
+    }
+
+    /**
+     * @return cpe of the product with the normalised name, preferring a vendor of the same name (also with the
+     * "_project" suffix NVD uses), or null if there is no such product or several vendors have one
+     */
+    public String find(String name) {
+        String query = normalise(name);
+        String value = query.isEmpty() ? null : nameIndex.get(query);
+        if (value == null) {
+            return null;
+        }
+
+        String[] cpes = value.split(" ");
+        String projectVendor = null;
+        for (String cpe : cpes) {
+            String vendor = vendorName(productKey(cpe));
+            if (normalise(vendor).equals(query)) {
+                return cpe;
+            }
+            if (vendor.endsWith("_project") && normalise(vendor.substring(0, vendor.length() - "_project".length())).equals(query)) {
+                projectVendor = cpe;
+            }
+        }
+        if (projectVendor != null) {
+            return projectVendor;
+        }
+        return cpes.length == 1 ? cpes[0] : null;
+    }
+
+    private static boolean isVendorProduct(String product) {
+        String[] components = product.split(":", 2);
+        return components.length == 2 && normalise(components[0]).equals(normalise(components[1]));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            productIndex.close();
+        } finally {
+            nameIndex.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming reader for the official CPE dictionary. Walks the xml with StAX and hands every
+ * cpe-item to a handler, so memory use does not depend on the size of the dictionary.
+ */
+public class CPEDictionaryReader {
+    private static final XMLInputFactory factory = createFactory();
+    private static final byte[] ITEM_START = "<cpe-item ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_END = "</cpe-item>".getBytes(StandardCharsets.UTF_8);
+
+    public interface ItemHandler {
+        /**
+         * Called for every cpe-item. The item instance is reused, copy values that should be kept.
+         * @return false to stop reading
+         */
+        boolean handle(CPEItem item);
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // prefixes are matched by hand, that way also fragments of the file can be parsed
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    public static void read(Path path, ItemHandler handler) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            read(inputStream, handler);
+        }
+    }
+
+    /**
+     * Reads items from the stream, the stream itself is left open.
+     */
+    public static void read(InputStream inputStream, ItemHandler handler) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            // the stax reader closes its input, the caller may still want to read the rest of the stream
+            reader = factory.createXMLStreamReader(new BufferedInputStream(CloseShieldInputStream.wrap(inputStream), 64 * 1024));
+            CPEItem item = new CPEItem();
+            boolean inItem = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = localName(reader.getLocalName());
+                    switch (name) {
+                        case "cpe-item":
+                            item.clear();
+                            item.name = reader.getAttributeValue(null, "name");
+                            inItem = true;
+                            break;
+                        case "title":
+                            if (inItem && item.title == null) {
+                                item.title = reader.getElementText();
+                            }
+                            break;
+                        case "reference":
+                            if (inItem) {
+                                String href = reader.getAttributeValue(null, "href");
+                                if (href != null) {
+                                    item.references.add(href);
+                                }
+                            }
+                            break;
+                        case "cpe23-item":
+                            if (inItem) {
+                                item.cpe23 = reader.getAttributeValue(null, "name");
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (inItem && localName(reader.getLocalName()).equals("cpe-item")) {
+                        inItem = false;
+                        if (!handler.handle(item)) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse cpe dictionary: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // ignore, nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the items of the dictionary into about the given number of byte ranges. Every range starts at a
+     * cpe-item and ends right after a closing cpe-item tag, so the ranges can be parsed independently.
+     */
+    public static List<long[]> split(Path path, int count) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long start = indexOf(channel, 0, ITEM_START);
+            long last = lastIndexOf(channel, ITEM_END);
+            if (start < 0 || last < 0) {
+                return ranges;
+            }
+            long end = last + ITEM_END.length;
+
+            long rangeStart = start;
+            for (int i = 1; i < count && rangeStart < end; i++) {
+                long target = Math.max(rangeStart, start + (end - start) * i / count);
+                long boundary = indexOf(channel, target, ITEM_END);
+                if (boundary < 0 || boundary + ITEM_END.length >= end) {
+                    break;
+                }
+                ranges.add(new long[]{rangeStart, boundary + ITEM_END.length});
+                rangeStart = boundary + ITEM_END.length;
+            }
+            ranges.add(new long[]{rangeStart, end});
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads the items of a range returned by split.
+     */
+    public static void readRange(Path path, long[] range, ItemHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.position(range[0]);
+            InputStream items = new BoundedInputStream(Channels.newInputStream(channel), range[1] - range[0]);
+            InputStream document = new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream("<cpe-list>".getBytes(StandardCharsets.UTF_8)),
+                    items,
+                    new ByteArrayInputStream("</cpe-list>".getBytes(StandardCharsets.UTF_8)))));
+            read(document, handler);
+        }
+    }
+
+    private static long indexOf(FileChannel channel, long from, byte[] pattern) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < pattern.length) {
+                return -1;
+            }
+            int index = indexOf(buffer.array(), read, pattern);
+            if (index >= 0) {
+                return position + index;
+            }
+            // keep an overlap so that a pattern crossing the buffer border is found
+            position += read - pattern.length + 1;
+        }
+    }
+
+    private static long lastIndexOf(FileChannel channel, byte[] pattern) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = channel.size();
+        while (end >= pattern.length) {
+            long position = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - position));
+            int read = channel.read(buffer, position);
+            for (int i = read - pattern.length; i >= 0; i--) {
+                if (matches(buffer.array(), i, pattern)) {
+                    return position + i;
+                }
+            }
+            if (position == 0) {
+                break;
+            }
+            end = position + pattern.length - 1;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        for (int i = 0; i <= length - pattern.length; i++) {
+            if (matches(data, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (data[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String localName(String name) {
+        int index = name.indexOf(':');
+        return index >= 0 ? name.substring(index + 1) : name;
+    }
+}
+
+class CPEItem {
+    public String name;
+    public String title;
+    public String cpe23;
+    public final List<String> references = new ArrayList<>();
+
+    void clear() {
+        name = null;
+        title = null;
+        cpe23 = null;
+        references.clear();
+    }
+}
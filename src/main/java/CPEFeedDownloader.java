@@ -0,0 +1,181 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Downloads the gzipped cpe feed. The validators of the last complete download are sent along, so an unchanged
+ * feed costs a single 304 response, and an interrupted download is kept as a partial file and resumed with a
+ * range request the next time.
+ */
+public class CPEFeedDownloader {
+    public enum Result {
+        UPDATED, NOT_MODIFIED, FAILED
+    }
+
+    public interface FeedConsumer {
+        /**
+         * Receives the compressed feed, must read the stream until the end.
+         */
+        void accept(InputStream compressed) throws IOException;
+    }
+
+    private final URL url;
+    private final Path partPath;
+    private final Path statePath;
+    public CPEFeedState state;
+
+    public CPEFeedDownloader(URL url, Path folder) {
+        this.url = url;
+        this.partPath = folder.resolve("official-cpe-dictionary_v2.3.xml.gz.part");
+        this.statePath = folder.resolve("cpe-feed.json");
+
+        CPEFeedState decoded = null;
+        try {
+            if (Files.exists(statePath)) {
+                decoded = new Gson().fromJson(Files.readString(statePath, StandardCharsets.UTF_8), CPEFeedState.class);
+            }
+        } catch (IOException | JsonParseException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Could not read cpe feed state: " + e.getMessage());
+        }
+        this.state = decoded != null ? decoded : new CPEFeedState();
+    }
+
+    /**
+     * @param conditional whether the validators of the last download may be used, false when the local copy is missing
+     */
+    public Result download(boolean conditional, FeedConsumer consumer) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                long partSize = 0;
+                if (state.partialValidator != null && Files.exists(partPath)) {
+                    partSize = Files.size(partPath);
+                } else {
+                    Files.deleteIfExists(partPath);
+                }
+
+                HttpRequest.Builder request = HttpRequest.newBuilder(url.toURI()).GET();
+                if (conditional) {
+                    if (state.etag != null) {
+                        request.header("If-None-Match", state.etag);
+                    }
+                    if (state.lastModified != null) {
+                        request.header("If-Modified-Since", state.lastModified);
+                    }
+                }
+                if (partSize > 0) {
+                    LoggerHelper.log(LogLevel.INFO, "[*] Resuming cpe feed download from byte " + partSize);
+                    request.header("Range", "bytes=" + partSize + "-");
+                    request.header("If-Range", state.partialValidator);
+                }
+
+                // the feed is a gzip file already, it is stored byte by byte for resuming
+                HttpTransport.Response response = HttpTransport.shared().send(request, false);
+                int responseCode = response.statusCode;
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    response.discard();
+                    LoggerHelper.log(LogLevel.INFO, "[i] Cpe feed not modified");
+                    return Result.NOT_MODIFIED;
+                } else if (responseCode == 416) {
+                    response.discard();
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Partial cpe feed not usable, starting over");
+                    clearPartial();
+                    continue;
+                } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                    String contentRange = response.header("Content-Range");
+                    if (contentRange == null || !contentRange.startsWith("bytes " + partSize + "-")) {
+                        LoggerHelper.log(LogLevel.DEBUG, "[i] Unexpected content range " + contentRange + ", starting over");
+                        response.body.close();
+                        clearPartial();
+                        continue;
+                    }
+                } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                    partSize = 0; // range ignored or feed changed, the whole feed follows
+                } else {
+                    response.discard();
+                    LoggerHelper.log(LogLevel.ERROR, "[!] Failed to download the CPE data file. HTTP response code: " + responseCode);
+                    return Result.FAILED;
+                }
+
+                return receive(response, partSize, consumer);
+            } catch (IOException | URISyntaxException e) {
+                LoggerHelper.log(LogLevel.ERROR, "[!] Downloading official cpe dictionary failed: " + e.getMessage());
+                return Result.FAILED;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LoggerHelper.log(LogLevel.ERROR, "[!] Downloading official cpe dictionary was interrupted");
+                return Result.FAILED;
+            }
+        }
+        return Result.FAILED;
+    }
+
+    private Result receive(HttpTransport.Response response, long partSize, FeedConsumer consumer) throws IOException {
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        long expectedSize = response.contentLength() >= 0 ? partSize + response.contentLength() : -1;
+
+        // remember what the partial file belongs to, If-Range requires a strong validator
+        state.partialValidator = etag != null && !etag.startsWith("W/") ? etag : lastModified;
+        save();
+
+        StandardOpenOption mode = partSize > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        try (OutputStream partOutput = Files.newOutputStream(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+             InputStream body = new TeeInputStream(response.body, partOutput)) {
+            InputStream compressed = body;
+            if (partSize > 0) {
+                compressed = new SequenceInputStream(new BoundedInputStream(Files.newInputStream(partPath), partSize), body);
+            }
+            consumer.accept(compressed);
+            compressed.close();
+        } catch (IOException e) {
+            if (expectedSize >= 0 && Files.exists(partPath) && Files.size(partPath) >= expectedSize) {
+                // everything was received, the feed itself is broken
+                clearPartial();
+            } else {
+                LoggerHelper.log(LogLevel.INFO, "[i] Cpe feed download interrupted, it will be resumed next time");
+            }
+            throw e;
+        }
+
+        state.etag = etag;
+        state.lastModified = lastModified;
+        clearPartial();
+        return Result.UPDATED;
+    }
+
+    private void clearPartial() throws IOException {
+        Files.deleteIfExists(partPath);
+        state.partialValidator = null;
+        save();
+    }
+
+    public void save() {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try {
+            Files.writeString(statePath, gson.toJson(state), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not save cpe feed state");
+        }
+    }
+}
+
+class CPEFeedState {
+    public String etag;
+    public String lastModified;
+    public String partialValidator;
+}
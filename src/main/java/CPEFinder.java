@@ -1,18 +1,34 @@
 import com.google.gson.*;
+import org.apache.commons.io.input.TeeInputStream;
 
 import java.lang.reflect.Type;
 import java.util.zip.GZIPInputStream;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 
 public class CPEFinder implements AutoCloseable{
@@ -22,6 +38,10 @@ public class CPEFinder implements AutoCloseable{
     private boolean changed = false;
     private Settings settings;
     private Path cpePath;
+    private Path indexPath;
+    private SortedIndex index;
+    private Path candidatesPath;
+    private CPECandidateIndex candidateIndex;
     public boolean cpeOnlyFromFile = false;
 
     public CPEFinder(Settings settings) throws URISyntaxException {
@@ -29,7 +49,7 @@ public class CPEFinder implements AutoCloseable{
         this.folder = settings.homeFolder;
 
         try {
-            this.url = this.folder.toURI().resolve("cpes.json").toURL(); // Convert to URL
+            this.url = Paths.get(this.folder.toURI()).resolve("cpes.json").toUri().toURL(); // Convert to URL
             byte[] data = Files.readAllBytes(Paths.get(this.url.toURI()));
             Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new DateDeserializer()).create();
             String stringData = new String(data);
@@ -52,6 +72,8 @@ public class CPEFinder implements AutoCloseable{
         }
 
         this.cpePath = Paths.get(this.folder.toURI()).resolve("official-cpe-dictionary_v2.3.xml"); // Convert to Path
+        this.indexPath = Paths.get(this.folder.toURI()).resolve("cpe-index.bin");
+        this.candidatesPath = Paths.get(this.folder.toURI()).resolve("cpe-products.bin");
 
         if (!cpeOnlyFromFile) {
             if (!checkCPEDatafile()) {
@@ -71,58 +93,59 @@ public class CPEFinder implements AutoCloseable{
         return pathExists;
     }
 
-    public void downloadCPEDataFile() {
+    /**
+     * Downloads the cpe feed and builds the index in a single pass: the http stream is inflated, copied to a
+     * temporary file in the home folder and parsed at the same time. The dictionary and index replace the old
+     * ones only after the whole feed has been read, until then the old files stay in use.
+     */
+    public CPEFeedDownloader.Result downloadCPEDataFile() {
         LoggerHelper.log(LogLevel.INFO, "[*] Downloading new CPE data file...");
-        String downloadPath = "https://nvd.nist.gov/feeds/xml/cpe/dictionary/official-cpe-dictionary_v2.3.xml.gz";
+        checkFolder();
         try {
-            URL url = new URL(downloadPath);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream inputStream = connection.getInputStream();
-                File gzipFile = new File("path_to_cpe_file.gz"); // Set your desired path here
-                FileOutputStream outputStream = new FileOutputStream(gzipFile);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
-                outputStream.close();
+            CPEFeedDownloader downloader = new CPEFeedDownloader(new URL(settings.cpeFeedUrl), this.cpePath.getParent());
+            return downloader.download(checkCPEDatafile(), this::installCPEFeed);
+        } catch (MalformedURLException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Invalid cpe feed url: " + settings.cpeFeedUrl);
+            return CPEFeedDownloader.Result.FAILED;
+        }
+    }
 
-                byte[] decompressedData = decompress(gzipFile);
-                File cpeFile = new File(this.cpePath.toString()); // Set your desired path here
-                FileOutputStream cpeOutputStream = new FileOutputStream(cpeFile);
-                cpeOutputStream.write(decompressedData);
-                cpeOutputStream.close();
-            } else {
-                LoggerHelper.log(LogLevel.ERROR, "[!] Failed to download the CPE data file. HTTP response code: " + responseCode);
+    private void installCPEFeed(InputStream compressed) throws IOException {
+        Path tempPath = Files.createTempFile(this.cpePath.getParent(), "official-cpe-dictionary", ".xml.tmp");
+        try {
+            Map<String, String> entries = new HashMap<>();
+            Map<String, String> products = new HashMap<>();
+
+            try (InputStream gzipInputStream = new GZIPInputStream(compressed, 64 * 1024);
+                 OutputStream cpeOutputStream = new BufferedOutputStream(Files.newOutputStream(tempPath), 64 * 1024);
+                 InputStream inputStream = new TeeInputStream(gzipInputStream, cpeOutputStream)) {
+                CPEDictionaryReader.read(inputStream, indexHandler(entries, products));
+                // copy whatever follows the root element, this also verifies the gzip trailer
+                inputStream.transferTo(OutputStream.nullOutputStream());
             }
-        } catch (IOException e) {
-            LoggerHelper.log(LogLevel.ERROR, "[!] Downloading official cpe dictionary failed: " + e.getMessage());
+
+            Files.move(tempPath, this.cpePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeIndex(entries, products);
+            cpeDictionary.dictionaryChanged = new Date();
+            changed = true;
+        } finally {
+            Files.deleteIfExists(tempPath);
         }
     }
 
-    private byte[] decompress(File gzipFile) throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(gzipFile);
-             GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
-             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+    private long missTimeInterval() {
+        return settings.cpeMissTimeInterval != null ? settings.cpeMissTimeInterval * 1000 : 0;
+    }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = gzipInputStream.read(buffer)) != -1) {
-                byteArrayOutputStream.write(buffer, 0, bytesRead);
-            }
-            return byteArrayOutputStream.toByteArray();
-        }
+    private long maxMissTimeInterval() {
+        return settings.cpeMissMaxTimeInterval != null ? settings.cpeMissMaxTimeInterval * 1000 : Long.MAX_VALUE;
     }
 
     public boolean shouldUpdate() {
         LoggerHelper.log(LogLevel.INFO, "[i] Last updated cpe dictionary: " + cpeDictionary.lastUpdated);
 
         if (settings.cpeTimeInterval != null) {
-            long timeInterval = settings.cpeTimeInterval;
+            long timeInterval = settings.cpeTimeInterval * 1000;
 
             // check if time since last updated is larger than the allowed time interval for updates
             if ((new Date().getTime() - cpeDictionary.lastUpdated.getTime()) > timeInterval) {
@@ -140,186 +163,487 @@ public class CPEFinder implements AutoCloseable{
         if (changed) {
             save();
         }
+        closeIndex();
     }
 
     public void update() {
         LoggerHelper.log(LogLevel.DEBUG, "[*] Updating cpe dictionary");
-        updateCPEDataFile();
-        Map<String, CPE> updatedCPEs = new HashMap<>();
-
-        for (Map.Entry<String, CPE> entry : cpeDictionary.dictionary.entrySet()) {
-            CPE cpe = entry.getValue();
-            if (cpe.value == null) {
-                // ignore, these will be removed from cpes so that they can be updated
-            } else {
-                updatedCPEs.put(entry.getKey(), cpe);
+        Date updateStarted = new Date();
+        boolean updated = false;
+        if (settings.cpeUpdateMode == CPEUpdateMode.api && Files.exists(this.indexPath)) {
+            updated = ingestModifiedCPEs(cpeDictionary.lastUpdated, updateStarted);
+            if (!updated) {
+                LoggerHelper.log(LogLevel.INFO, "[i] Incremental cpe update failed, downloading the cpe feed instead");
             }
         }
-        cpeDictionary.lastUpdated = new Date();
-        cpeDictionary.dictionary = updatedCPEs;
+        if (!updated) {
+            updated = updateCPEDataFile() != CPEFeedDownloader.Result.FAILED;
+        }
+        if (!updated) {
+            // lastUpdated stays, so the next run tries again
+            LoggerHelper.log(LogLevel.ERROR, "[!] Updating cpe dictionary failed");
+            return;
+        }
+        // libraries without cpe are kept, they are looked up again once the dictionary has changed
+        cpeDictionary.lastUpdated = updateStarted;
 
         changed = true;
     }
-    public void updateCPEDataFile() {
-        LoggerHelper.log(LogLevel.DEBUG, "[*] Updating CPE data file");
+    /**
+     * Applies the cpe records modified in the given period from the NVD CPE API to the index and to the
+     * cached cpe values.
+     */
+    public boolean ingestModifiedCPEs(Date from, Date to) {
+        LoggerHelper.log(LogLevel.INFO, "[*] Fetching cpe records modified since " + from);
         try {
-            Files.deleteIfExists(cpePath);
+            CPEApiIngest ingest = new CPEApiIngest(settings.cpeApiUrl, settings.nvdApiKey, RateLimiter.forNVD(settings));
+            CPEApiUpdates updates = ingest.fetchModified(from, to);
+
+            if (!updates.isEmpty()) {
+                Map<String, String> entries = new HashMap<>();
+                SortedIndex index = openIndex();
+                if (index != null) {
+                    index.forEach(entries::put);
+                }
+                updates.replaceDeprecated(entries);
+                entries.putAll(updates.references);
+
+                Map<String, String> products = new HashMap<>();
+                if (Files.exists(this.candidatesPath)) {
+                    try (SortedIndex candidates = SortedIndex.open(this.candidatesPath)) {
+                        candidates.forEach(products::put);
+                    }
+                }
+                updates.replaceDeprecated(products);
+                products.putAll(updates.products);
+                writeIndex(entries, products);
+
+                // cached values of deprecated cpes are replaced, or dropped so that they are looked up again
+                Iterator<Map.Entry<String, CPE>> cached = cpeDictionary.dictionary.entrySet().iterator();
+                while (cached.hasNext()) {
+                    Map.Entry<String, CPE> entry = cached.next();
+                    if (entry.getValue().value != null && updates.deprecated.containsKey(entry.getValue().value)) {
+                        String replacement = updates.deprecated.get(entry.getValue().value);
+                        if (replacement != null) {
+                            entry.setValue(new CPE(replacement));
+                        } else {
+                            cached.remove();
+                        }
+                    }
+                }
+                for (Map.Entry<String, String> update : updates.references.entrySet()) {
+                    if (cpeDictionary.dictionary.containsKey(update.getKey())) {
+                        cpeDictionary.dictionary.put(update.getKey(), new CPE(update.getValue()));
+                    }
+                }
+                cpeDictionary.dictionaryChanged = new Date();
+                changed = true;
+            }
+            LoggerHelper.log(LogLevel.INFO, "[i] Applied " + updates.references.size() + " cpe updates for " + updates.products.size() + " products and " + updates.deprecated.size() + " deprecated cpes");
+            return true;
         } catch (IOException e) {
-            LoggerHelper.log(LogLevel.ERROR, "[!] Removing cpe dictionary failed: " + e.getMessage());
+            LoggerHelper.log(LogLevel.ERROR, "[!] Fetching modified cpe records failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        downloadCPEDataFile();
+        return false;
+    }
+
+    public CPEFeedDownloader.Result updateCPEDataFile() {
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Updating CPE data file");
+        // the old dictionary is replaced only once the new one has been downloaded and parsed
+        return downloadCPEDataFile();
     }
 
     public String findCPEForLibrary(String name) {
-        LoggerHelper.log(LogLevel.DEBUG, "[*] Finding CPE for library " + name);
-        if (cpeDictionary.dictionary.containsKey(name)) {
-            LoggerHelper.log(LogLevel.DEBUG, "[i] Found existing CPE value: " + cpeDictionary.dictionary.get(name).value);
-            return cpeDictionary.dictionary.get(name).value;
+        return findCPEsForLibraries(List.of(name)).get(name);
+    }
+
+    /**
+     * Finds cpe values for several libraries at once. Names that are not in cpes.json are looked up from the
+     * index, which is rebuilt when it is older than the dictionary, so a name missing from it has no cpe. Only
+     * when no index can be built the names are searched with a single pass over the cpe dictionary.
+     * Names without an owner, like pod names, are matched against the products of the candidate index instead.
+     * Found values as well as misses are recorded in the cpe dictionary.
+     *
+     * @return found cpe values by library name, libraries without a cpe are left out
+     */
+    public Map<String, String> findCPEsForLibraries(Collection<String> names) {
+        // cpes.json, the index and the dictionary references are all lowercase
+        Map<String, String> found = new HashMap<>();
+        Set<String> unresolved = new LinkedHashSet<>();
+
+        Date now = new Date();
+        for (String library : names) {
+            String name = library.toLowerCase();
+            LoggerHelper.log(LogLevel.DEBUG, "[*] Finding CPE for library " + name);
+            CPE existing = cpeDictionary.dictionary.get(name);
+            if (existing != null && existing.value != null) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Found existing CPE value: " + existing.value);
+                found.put(name, existing.value);
+            } else if (cpeOnlyFromFile) {
+                // only what is in cpes.json
+            } else if (existing == null || existing.shouldRetry(cpeDictionary.dictionaryChanged, missTimeInterval(), maxMissTimeInterval(), now)) {
+                unresolved.add(name);
+            } else {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] No cpe for " + name + " when last checked at " + existing.lastChecked);
+            }
         }
 
-        if (cpeOnlyFromFile) {
-            return null;
+        if (!unresolved.isEmpty()) {
+            found.putAll(findUnresolved(unresolved, now));
+        }
+
+        Map<String, String> results = new HashMap<>();
+        for (String library : names) {
+            String value = found.get(library.toLowerCase());
+            if (value != null) {
+                results.put(library, value);
+            }
         }
+        return results;
+    }
 
-        if (name.contains("/")) {
-            String cpePath = this.cpePath.toString();
+    /**
+     * Looks up names that are neither in cpes.json nor a recent miss there and records the outcome.
+     */
+    private Map<String, String> findUnresolved(Set<String> unresolved, Date now) {
+        Map<String, String> results = new HashMap<>();
+        Set<String> searched = new HashSet<>();
+        SortedIndex index = openIndex();
+        for (String name : unresolved) {
+            if (!name.contains("/")) {
+                CPECandidateIndex candidates = openCandidateIndex();
+                String value = candidates != null ? candidates.find(name) : null;
+                if (value != null) {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Found cpe from product index for " + name + ": " + value);
+                    results.put(name, value);
+                } else {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] No cpe product matches name " + name);
+                }
+                continue;
+            }
 
-            if (Files.exists(Paths.get(cpePath))) {
-                LoggerHelper.log(LogLevel.DEBUG, "[*] Searching for cpe for title: " + name);
-                LoggerHelper.log(LogLevel.DEBUG, "[*] Querying from file: " + cpePath + " ...");
+            if (index == null) {
+                // no usable index, the dictionary itself has to be searched
+                searched.add(name);
+                continue;
+            }
+            String value = index.get(name);
+            if (value != null) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Found cpe from index for " + name + ": " + value);
+                results.put(name, value);
+            } else {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] No cpe in index for " + name);
+            }
+        }
 
-                try {
-                    String cpeData = new String(Files.readAllBytes(Paths.get(cpePath)));
-                    String[] lines = cpeData.split("\\r?\\n");
+        if (!searched.isEmpty()) {
+            results.putAll(searchCPEDictionary(searched));
+        }
 
-                    boolean itemFound = false;
-                    int lineCount = 0;
-                    for (String line : lines) {
-                        line = line.toLowerCase();
+        for (String name : unresolved) {
+            String value = results.get(name);
+            if (value != null) {
+                cpeDictionary.dictionary.put(name, new CPE(value));
+            } else {
+                CPE previous = cpeDictionary.dictionary.get(name);
+                cpeDictionary.dictionary.put(name, CPE.miss(now, previous != null ? previous.misses + 1 : 1));
+            }
+        }
+        changed = true;
 
-                        if (itemFound) {
-                            lineCount++;
-                        }
+        return results;
+    }
+
+    /**
+     * Searches the cpe dictionary once for all of the names: the first item whose title or reference contains
+     * the name gives the cpe for that name.
+     */
+    private Map<String, String> searchCPEDictionary(Set<String> names) {
+        Map<String, String> found = new HashMap<>();
+        if (!Files.exists(this.cpePath)) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Cpe dictionary not found!");
+            return found;
+        }
 
-                        if (line.contains(name)) {
-                            itemFound = true;
-                            lineCount = 0;
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Searching for cpe for " + names.size() + " names from file: " + this.cpePath + " ...");
+        AhoCorasick matcher = new AhoCorasick(names);
+
+        try {
+            CPEDictionaryReader.read(this.cpePath, item -> {
+                if (item.cpe23 != null) {
+                    Consumer<String> onMatch = name -> {
+                        if (!found.containsKey(name)) {
+                            String cleanedCpe = cleanCPE(item.cpe23);
+                            LoggerHelper.log(LogLevel.DEBUG, "[i] For " + name + " cleaned cpe: " + cleanedCpe);
+                            found.put(name, cleanedCpe);
                         }
+                    };
+                    if (item.title != null) {
+                        matcher.match(item.title.toLowerCase(), onMatch);
+                    }
+                    for (String reference : item.references) {
+                        matcher.match(reference.toLowerCase(), onMatch);
+                    }
+                }
+                return found.size() < names.size();
+            });
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not read cpe file at " + this.cpePath + ": " + e.getMessage());
+        }
+        return found;
+    }
 
-                        if (itemFound) {
-                            if (line.contains("</cpe-item>")) {
-                                itemFound = false;
-                                lineCount = 0;
-                            }
-
-                            if (line.contains("<cpe-23:cpe23-item name=\"")) {
-                                String[] components = line.split("<cpe-23:cpe23-item name=\"");
-                                if (components.length > 0) {
-                                    String value = components[components.length - 1];
-                                    value = value.replace("\"/>", "");
-
-                                    String[] splitValues = value.split(":");
-                                    splitValues[5] = "*";
-                                    String cleanedCpe = String.join(":", splitValues);
-                                    LoggerHelper.log(LogLevel.DEBUG, "[i] cleaned cpe: " + cleanedCpe);
-
-                                    cpeDictionary.dictionary.put(name, new CPE(cleanedCpe));
-                                    changed = true;
-
-                                    return cleanedCpe;
-                                }
-                            }
+    /**
+     * Builds the owner/repo to cpe index and the product candidate index from the cpe dictionary. Every github
+     * or bitbucket reference of an item is indexed, if several items reference the same repository or share
+     * the same product the first one is kept.
+     */
+    public boolean buildIndex() {
+        LoggerHelper.log(LogLevel.INFO, "[*] Building cpe index from: " + this.cpePath);
+        Map<String, String> entries = new HashMap<>();
+        Map<String, String> products = new HashMap<>();
+
+        try {
+            CPEDictionaryReader.read(this.cpePath, indexHandler(entries, products));
+            writeIndex(entries, products);
+            return true;
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Building cpe index failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private CPEDictionaryReader.ItemHandler indexHandler(Map<String, String> entries, Map<String, String> products) {
+        return item -> {
+            if (item.cpe23 != null) {
+                String cleanedCpe = null;
+                String product = CPECandidateIndex.productKey(item.cpe23);
+                if (product != null && !products.containsKey(product)) {
+                    cleanedCpe = cleanCPE(item.cpe23);
+                    products.put(product, cleanedCpe);
+                }
+                for (String reference : item.references) {
+                    String name = getNameFromUrl(reference);
+                    if (name != null) {
+                        if (cleanedCpe == null) {
+                            cleanedCpe = cleanCPE(item.cpe23);
                         }
+                        entries.putIfAbsent(name, cleanedCpe);
                     }
-                } catch (IOException e) {
-                    LoggerHelper.log(LogLevel.ERROR, "[!] Could not read cpe file at " + cpePath);
                 }
-            } else {
-                LoggerHelper.log(LogLevel.ERROR, "[!] Cpe dictionary not found!");
             }
-        } else {
-            LoggerHelper.log(LogLevel.DEBUG, "[i] Name does not contain \"/\", ignore");
+            return true;
+        };
+    }
+
+    private void writeIndex(Map<String, String> entries, Map<String, String> products) throws IOException {
+        closeIndex();
+        checkFolder();
+        CPECandidateIndex.write(this.candidatesPath, products);
+        SortedIndex.write(this.indexPath, entries);
+        LoggerHelper.log(LogLevel.INFO, "[i] Cpe index built with " + entries.size() + " entries and " + products.size() + " products");
+    }
+
+    /**
+     * Opens the cpe index, (re)building it first when it is missing or older than the cpe dictionary.
+     */
+    private SortedIndex openIndex() {
+        if (this.index != null) {
+            return this.index;
         }
 
-        cpeDictionary.dictionary.put(name, new CPE(null));
-        changed = true;
+        try {
+            boolean dictionaryExists = Files.exists(this.cpePath);
+            boolean indexExists = Files.exists(this.indexPath);
+            if (dictionaryExists && (!indexExists || !Files.exists(this.candidatesPath)
+                    || Files.getLastModifiedTime(this.indexPath).compareTo(Files.getLastModifiedTime(this.cpePath)) < 0)) {
+                indexExists = buildIndex();
+            }
 
-        return null;
+            if (indexExists) {
+                this.index = SortedIndex.open(this.indexPath);
+            }
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not open cpe index: " + e.getMessage());
+        }
+        return this.index;
     }
 
-    public void generateDictionaryWithAllCPEs() { // VÕIKSID MUUTA XML LUGEMIST
-        String cpePath = this.cpePath.toString();
-        int foundCount = 0;
+    /**
+     * Opens the product candidate index, the sorted index is (re)built first if needed.
+     */
+    private CPECandidateIndex openCandidateIndex() {
+        if (this.candidateIndex != null) {
+            return this.candidateIndex;
+        }
 
-        if (java.nio.file.Files.exists(java.nio.file.Paths.get(cpePath))) {
-            LoggerHelper.log(LogLevel.DEBUG, "[*] Querying from file: " + cpePath + " ...");
+        if (openIndex() != null && Files.exists(this.candidatesPath)) {
+            try {
+                this.candidateIndex = CPECandidateIndex.open(this.candidatesPath);
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Opened cpe product index with " + this.candidateIndex.size() + " products");
+            } catch (IOException e) {
+                LoggerHelper.log(LogLevel.ERROR, "[!] Could not open cpe product index: " + e.getMessage());
+            }
+        }
+        return this.candidateIndex;
+    }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(cpePath))) {
-                String line;
-                boolean itemFound = false;
-                int lineCount = 0;
-                String name = "";
+    private void closeIndex() {
+        if (this.candidateIndex != null) {
+            try {
+                this.candidateIndex.close();
+            } catch (IOException e) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Closing cpe product index failed: " + e.getMessage());
+            }
+            this.candidateIndex = null;
+        }
+        if (this.index != null) {
+            try {
+                this.index.close();
+            } catch (IOException e) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Closing cpe index failed: " + e.getMessage());
+            }
+            this.index = null;
+        }
+    }
 
-                while ((line = reader.readLine()) != null) {
-                    line = line.toLowerCase();
+    /**
+     * Adds every dictionary item with a github or bitbucket reference to the cpe dictionary. The file is split
+     * into ranges that are parsed in parallel, the results are merged in file order. Completed ranges go to a
+     * journal and cpes.json is saved as a checkpoint every few ranges, an interrupted build continues from there.
+     * When several items share a name the first one in the file wins, names that already have a cpe keep it.
+     */
+    public void generateDictionaryWithAllCPEs() {
+        if (!Files.exists(this.cpePath)) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Cpe dictionary not found!");
+            return;
+        }
 
-                    if (itemFound) {
-                        lineCount++;
-                    }
+        int parallelism = settings.cpeParseParallelism != null && settings.cpeParseParallelism > 0
+                ? settings.cpeParseParallelism : Runtime.getRuntime().availableProcessors();
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Querying from file: " + this.cpePath + " with " + parallelism + " threads ...");
 
-                    if (line.contains("<reference href=") && !itemFound) {
-                        LoggerHelper.log(LogLevel.DEBUG, "[i] Found reference: " + line);
+        long startTime = System.nanoTime();
+        checkFolder();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (CPEBuildJournal journal = new CPEBuildJournal(this.cpePath.getParent())) {
+            long size = Files.size(this.cpePath);
+            long modified = Files.getLastModifiedTime(this.cpePath).toMillis();
+
+            List<long[]> ranges;
+            if (journal.resume(size, modified)) {
+                ranges = journal.checkpoint.ranges;
+                LoggerHelper.log(LogLevel.INFO, "[i] Resuming cpe build, " + (journal.checkpoint.mergedRanges + journal.completed.size()) + " of " + ranges.size() + " ranges done");
+            } else {
+                // more ranges than threads, so that a slow range does not leave the other threads idle
+                ranges = CPEDictionaryReader.split(this.cpePath, parallelism * 4);
+                journal.start(size, modified, ranges);
+            }
 
-                        line = line.trim();
-                        line = line.replace("<reference href=\"", "");
-                        String[] components = line.split(">");
-                        String href = components[0].replace("\"", "");
+            // ranges that are complete but can not be merged before the ranges in front of them
+            Map<Integer, Map<String, String>> pending = new TreeMap<>(journal.completed);
+            int merged = journal.checkpoint.mergedRanges;
+            int checkpointInterval = Math.max(1, ranges.size() / 8);
+            int lastCheckpoint = merged;
+
+            CompletionService<CPEChunk> completionService = new ExecutorCompletionService<>(pool);
+            int outstanding = 0;
+            for (int i = merged; i < ranges.size(); i++) {
+                if (!pending.containsKey(i)) {
+                    int rangeIndex = i;
+                    completionService.submit(() -> parseChunk(rangeIndex, ranges.get(rangeIndex)));
+                    outstanding++;
+                }
+            }
 
-                        String foundName = getNameFromUrl(href);
-                        if (foundName != null) {
-                            LoggerHelper.log(LogLevel.DEBUG, "[i] Found name: " + foundName);
-                            name = foundName;
-                            itemFound = true;
-                            lineCount = 0;
-                        } else {
-                            LoggerHelper.log(LogLevel.DEBUG, "[i] No name");
+            int itemCount = 0;
+            int foundCount = 0;
+            while (true) {
+                while (pending.containsKey(merged)) {
+                    for (Map.Entry<String, String> entry : pending.remove(merged).entrySet()) {
+                        CPE existing = this.cpeDictionary.dictionary.get(entry.getKey());
+                        if (existing == null || existing.value == null) {
+                            this.cpeDictionary.dictionary.put(entry.getKey(), new CPE(entry.getValue()));
+                            foundCount++;
                         }
                     }
+                    merged++;
+                    this.changed = true;
+                }
+                if (merged - lastCheckpoint >= checkpointInterval && merged < ranges.size()) {
+                    save();
+                    journal.checkpoint(merged, pending);
+                    lastCheckpoint = merged;
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Checkpoint after " + merged + " of " + ranges.size() + " ranges");
+                }
+                if (outstanding == 0) {
+                    break;
+                }
 
-                    if (itemFound) {
-                        if (line.contains("</cpe-item>")) {
-                            itemFound = false;
-                            lineCount = 0;
-                            name = "";
-                        }
+                CPEChunk chunk = completionService.take().get();
+                outstanding--;
+                itemCount += chunk.itemCount;
+                journal.append(chunk.index, chunk.found);
+                pending.put(chunk.index, chunk.found);
+            }
 
-                        if (line.contains("<cpe-23:cpe23-item name=\"")) {
-                            String[] components = line.split("<cpe-23:cpe23-item name=\"");
-                            if (components.length > 0) {
-                                String value = components[components.length - 1].replace("\"/>", "");
-                                String[] splitValues = value.split(":");
-                                splitValues[5] = "*";
-                                String cleanedCpe = String.join(":", splitValues);
-                                LoggerHelper.log(LogLevel.DEBUG, "[i] cleaned cpe: " + cleanedCpe);
-
-                                this.cpeDictionary.dictionary.put(name, new CPE(cleanedCpe));
-                                this.changed = true;
-                                foundCount++;
-                                LoggerHelper.log(LogLevel.DEBUG, "[i] Total number of cpes found: " + foundCount);
-
-                                if (foundCount % 100 == 0) {
-                                    save();
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                LoggerHelper.log(LogLevel.ERROR, "[!] Could not read cpe file at " + cpePath);
+            save();
+            journal.finish();
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            LoggerHelper.log(LogLevel.INFO, "[i] Parsed " + itemCount + " cpe items in " + String.format("%.1f", seconds) + " s ("
+                    + Math.round(itemCount / Math.max(seconds, 0.001)) + " items/s), found " + foundCount + " cpes");
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not read cpe file at " + this.cpePath + ": " + e.getMessage());
+        } catch (ExecutionException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not read cpe file at " + this.cpePath + ": " + e.getCause().getMessage() + ", the build can be resumed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private CPEChunk parseChunk(int index, long[] range) throws IOException {
+        CPEChunk chunk = new CPEChunk(index);
+        CPEDictionaryReader.readRange(this.cpePath, range, item -> {
+            chunk.itemCount++;
+            String name = nameFromReferences(item);
+            if (name != null && item.cpe23 != null) {
+                String cleanedCpe = cleanCPE(item.cpe23);
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Found name: " + name + ", cleaned cpe: " + cleanedCpe);
+                // the first item wins, same as for the index and the dictionary lookups
+                chunk.found.putIfAbsent(name, cleanedCpe);
+            }
+            return true;
+        });
+        return chunk;
+    }
+
+    /**
+     * Library name (owner/repo) of the first github or bitbucket reference of the item.
+     */
+    public static String nameFromReferences(CPEItem item) {
+        for (String reference : item.references) {
+            String name = getNameFromUrl(reference);
+            if (name != null) {
+                return name;
             }
-        } else {
-            LoggerHelper.log(LogLevel.ERROR, "[!] Cpe dictionary not found!");
         }
+        return null;
+    }
+
+    /**
+     * Lowercases the cpe 2.3 string and replaces the version with a wildcard.
+     */
+    public static String cleanCPE(String cpe23) {
+        String[] splitValues = cpe23.toLowerCase().split(":");
+        if (splitValues.length > 5) {
+            splitValues[5] = "*";
+        }
+        return String.join(":", splitValues);
     }
 
     public static String getNameFromUrl(String url) {
@@ -355,13 +679,28 @@ public class CPEFinder implements AutoCloseable{
     public void save() {
         checkFolder();
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String json = gson.toJson(this.cpeDictionary);
+        Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new DateSerializer()).setPrettyPrinting().create();
 
-        try (FileWriter fileWriter = new FileWriter(String.valueOf(url))) {
-            fileWriter.write(json);
-        } catch (IOException e) {
+        // written next to cpes.json and moved over it, a crash while saving never leaves a truncated file behind
+        Path path = null;
+        Path tempPath = null;
+        try {
+            path = Paths.get(this.url.toURI());
+            tempPath = Files.createTempFile(path.getParent(), "cpes", ".json.tmp");
+            try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                gson.toJson(this.cpeDictionary, writer);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | URISyntaxException | JsonIOException e) {
             LoggerHelper.log(LogLevel.ERROR, "[!] Could not save cpes");
+        } finally {
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException e) {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Removing " + tempPath + " failed: " + e.getMessage());
+                }
+            }
         }
     }
     public void checkFolder() {
@@ -372,6 +711,13 @@ public class CPEFinder implements AutoCloseable{
             }
         }
     }
+    class DateSerializer implements JsonSerializer<Date> {
+        @Override
+        public JsonElement serialize(Date date, Type typeOfSrc, JsonSerializationContext context) {
+            // Unix timestamp in seconds, the format DateDeserializer reads
+            return new JsonPrimitive(date.getTime() / 1000.0);
+        }
+    }
     class DateDeserializer implements JsonDeserializer<Date> {
         @Override
         public Date deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
@@ -386,15 +732,52 @@ public class CPEFinder implements AutoCloseable{
         }
     }
 }
+class CPEChunk {
+    public final int index;
+    public int itemCount = 0;
+    public final Map<String, String> found = new LinkedHashMap<>();
+
+    public CPEChunk(int index) {
+        this.index = index;
+    }
+}
 class CPE {
     public String value;
+    public Date lastChecked; // only set for libraries without cpe
+    public int misses;
 
     public CPE(String value) {
         this.value = value;
     }
+
+    static CPE miss(Date checked, int misses) {
+        CPE cpe = new CPE(null);
+        cpe.lastChecked = checked;
+        cpe.misses = misses;
+        return cpe;
+    }
+
+    /**
+     * A library without cpe is looked up again when the dictionary has changed since the last check or when
+     * the interval has passed. The interval doubles with every miss up to the maximum.
+     */
+    boolean shouldRetry(Date dictionaryChanged, long interval, long maxInterval, Date now) {
+        if (value != null) {
+            return false;
+        }
+        if (lastChecked == null || (dictionaryChanged != null && dictionaryChanged.after(lastChecked))) {
+            return true;
+        }
+        long backoff = interval;
+        for (int i = 1; i < misses && backoff <= maxInterval / 2; i++) {
+            backoff *= 2;
+        }
+        return now.getTime() - lastChecked.getTime() >= Math.min(backoff, maxInterval);
+    }
 }
 class CPEDictionary {
     public Date lastUpdated;
+    public Date dictionaryChanged; // when the cpe dictionary or index content last changed
     public Map<String, CPE> dictionary;
 
     public CPEDictionary(Date lastUpdated) {
@@ -61,7 +61,7 @@ public class DependencyAnalyser implements AutoCloseable {
         LoggerHelper.log(LogLevel.INFO, "[i] Translations last updated: " + translations.date.toString());
 
         if (settings.specTranslationTimeInterval != null) {
-            long timeInterval = settings.specTranslationTimeInterval;
+            long timeInterval = settings.specTranslationTimeInterval * 1000;
             long elapsedTime = new Date().getTime() - translations.date.getTime();
 
             if (elapsedTime > timeInterval) {
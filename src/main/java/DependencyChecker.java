@@ -6,11 +6,13 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 class DependencyChecker {
     private final Settings settings;
     public boolean onlyDirectDependencies = false;
     public boolean cpeOnlyFromFile = false;
+    public Severity minSeverity = null; // vulnerabilities of lower severity are skipped before matching versions
 
     public DependencyChecker(Settings settings) {
         this.settings = settings;
@@ -21,17 +23,25 @@ class DependencyChecker {
 
         Map<String, Pair<String, List<CVEData>>> results = new HashMap<>();
 
-        CPEFinder cpeFinder = new CPEFinder(settings);
-        VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings);
-
-        for (Map.Entry<String, CPE> entry : cpeFinder.cpeDictionary.dictionary.entrySet()) {
-            String libraryName = entry.getKey();
-            CPE cpe = entry.getValue();
+        // closing waits for background updates and saves the store, also when a query failed
+        try (CPEFinder cpeFinder = new CPEFinder(settings);
+             VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings)) {
+            vulnerabilityAnalyser.refreshModified();
+
+            // start all queries first, they run concurrently within the NVD rate limit
+            Map<String, CompletableFuture<List<CVEData>>> queries = new LinkedHashMap<>();
+            for (Map.Entry<String, CPE> entry : cpeFinder.cpeDictionary.dictionary.entrySet()) {
+                CPE cpe = entry.getValue();
+                if (cpe != null && cpe.value != null) {
+                    queries.put(entry.getKey(), vulnerabilityAnalyser.queryVulnerabilitiesForAsync(cpe.value, minSeverity));
+                }
+            }
 
-            if (cpe != null) {
-                List<CVEData> vulnerabilities = vulnerabilityAnalyser.queryVulnerabilitiesFor(cpe.value);
+            for (Map.Entry<String, CompletableFuture<List<CVEData>>> query : queries.entrySet()) {
+                String libraryName = query.getKey();
+                List<CVEData> vulnerabilities = query.getValue().join();
                 LoggerHelper.log(LogLevel.DEBUG, "[i] Found " + vulnerabilities.size() + " vulnerabilities.");
-                results.put(libraryName, new Pair<>(cpe.value, vulnerabilities));
+                results.put(libraryName, new Pair<>(cpeFinder.cpeDictionary.dictionary.get(libraryName).value, vulnerabilities));
             }
         }
 
@@ -42,29 +52,14 @@ class DependencyChecker {
 
         Map<String, Pair<String, List<CVEData>>> results = new HashMap<>();
 
+        Set<String> libraryNames = new LinkedHashSet<>();
         try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
             String line;
-            CPEFinder cpeFinder = new CPEFinder(settings);
-            cpeFinder.cpeOnlyFromFile = cpeOnlyFromFile;
-            VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings);
             while ((line = br.readLine()) != null) {
                 String libraryName = line.trim();
                 if (libraryName.contains("/")) {
-                    LoggerHelper.log(LogLevel.DEBUG, "[*] Analysing: " + libraryName + "...");
-
-                    if (results.containsKey(libraryName)) {
-                        LoggerHelper.log(LogLevel.DEBUG, "[i] Library already analysed, ignore.");
-                        continue;
-                    }
-
-                    String cpe = cpeFinder.findCPEForLibrary(libraryName);
-                    if (cpe != null) {
-                        LoggerHelper.log(LogLevel.DEBUG, "[i] Found cpe: " + cpe);
-                        List<CVEData> vulnerabilities = vulnerabilityAnalyser.queryVulnerabilitiesFor(cpe);
-                        LoggerHelper.log(LogLevel.DEBUG, "[i] Found " + vulnerabilities.size() + " vulnerabilities.");
-                        results.put(libraryName, new Pair<>(cpe, vulnerabilities));
-                    } else {
-                        LoggerHelper.log(LogLevel.DEBUG, "[i] No cpe found");
+                    if (!libraryNames.add(libraryName)) {
+                        LoggerHelper.log(LogLevel.DEBUG, "[i] Library " + libraryName + " already listed, ignore.");
                     }
                 } else {
                     LoggerHelper.log(LogLevel.DEBUG, "[i] Ignoring line: " + libraryName);
@@ -72,6 +67,36 @@ class DependencyChecker {
             }
         } catch (IOException e) {
             LoggerHelper.log(LogLevel.ERROR, "[!] Could not read file: " + filePath);
+            return results;
+        }
+
+        try (CPEFinder cpeFinder = new CPEFinder(settings);
+             VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings)) {
+            cpeFinder.cpeOnlyFromFile = cpeOnlyFromFile;
+            Map<String, String> cpes = cpeFinder.findCPEsForLibraries(libraryNames);
+            vulnerabilityAnalyser.refreshModified();
+
+            Map<String, CompletableFuture<List<CVEData>>> queries = new HashMap<>();
+            for (String libraryName : libraryNames) {
+                String cpe = cpes.get(libraryName);
+                if (cpe != null) {
+                    queries.put(libraryName, vulnerabilityAnalyser.queryVulnerabilitiesForAsync(cpe, minSeverity));
+                }
+            }
+
+            for (String libraryName : libraryNames) {
+                LoggerHelper.log(LogLevel.DEBUG, "[*] Analysing: " + libraryName + "...");
+
+                String cpe = cpes.get(libraryName);
+                if (cpe != null) {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Found cpe: " + cpe);
+                    List<CVEData> vulnerabilities = queries.get(libraryName).join();
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Found " + vulnerabilities.size() + " vulnerabilities.");
+                    results.put(libraryName, new Pair<>(cpe, vulnerabilities));
+                } else {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] No cpe found");
+                }
+            }
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
@@ -116,12 +141,20 @@ class DependencyChecker {
             analysedLibraries.add(newAnalysedLibrary);
         }
 
-        CPEFinder cpeFinder = new CPEFinder(settings);
+        List<String> names = new ArrayList<>();
+        for (AnalysedLibrary analysedLibrary : analysedLibraries) {
+            names.add(analysedLibrary.name);
+        }
+
+        Map<String, String> cpes;
+        try (CPEFinder cpeFinder = new CPEFinder(settings)) {
+            cpes = cpeFinder.findCPEsForLibraries(names);
+        }
 
         int count = 0;
         for (AnalysedLibrary analysedLibrary : analysedLibraries) {
             String name = analysedLibrary.name;
-            String  cpe = cpeFinder.findCPEForLibrary("grpc/grpc-swift");
+            String cpe = cpes.get(name);
             if (cpe != null) {
                 count++;
                 analysedLibrary.cpe = cpe;
@@ -134,15 +167,24 @@ class DependencyChecker {
         // query vulnerabilities for each found cpe
         count = 0;
 
-        VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings);
+        try (VulnerabilityAnalyser vulnerabilityAnalyser = new VulnerabilityAnalyser(settings)) {
+            vulnerabilityAnalyser.refreshModified();
 
-        for (AnalysedLibrary analysedLibrary : analysedLibraries) {
-            String cpe = analysedLibrary.cpe;
-            if (cpe != null) {
-                List<CVEData> cveData = vulnerabilityAnalyser.queryVulnerabilitiesFor(cpe);
-                count += cveData.size();
-                analysedLibrary.vulnerabilities = cveData;
-                LoggerHelper.log(LogLevel.DEBUG, "[i] For library: " + analysedLibrary.name + " found " + cveData.size() + " vulnerabilities");
+            Map<String, CompletableFuture<List<CVEData>>> queries = new HashMap<>();
+            for (AnalysedLibrary analysedLibrary : analysedLibraries) {
+                if (analysedLibrary.cpe != null) {
+                    queries.put(analysedLibrary.name, vulnerabilityAnalyser.queryVulnerabilitiesForAsync(analysedLibrary.cpe, minSeverity));
+                }
+            }
+
+            for (AnalysedLibrary analysedLibrary : analysedLibraries) {
+                String cpe = analysedLibrary.cpe;
+                if (cpe != null) {
+                    List<CVEData> cveData = queries.get(analysedLibrary.name).join();
+                    count += cveData.size();
+                    analysedLibrary.vulnerabilities = cveData;
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] For library: " + analysedLibrary.name + " found " + cveData.size() + " vulnerabilities");
+                }
             }
         }
         LoggerHelper.log(LogLevel.INFO, "[i] Found " + count + " possible vulnerabilities in used libraries.");
@@ -186,7 +228,7 @@ class AnalysedLibrary {
         List<Pair<Library, CVEData>> vulnerableVersions = new ArrayList<>();
 
         for (CVEData vulnerability : vulnerabilities) {
-            LoggerHelper.log(LogLevel.DEBUG, "[*] Matching libraries to vulnerability: " + (vulnerability.cve != null ? vulnerability.cve.description : ""));
+            LoggerHelper.log(LogLevel.DEBUG, "[*] Matching libraries to vulnerability: " + (vulnerability.cve != null ? vulnerability.cve.cveId : ""));
             List<CPEMatch> versions = vulnerability.configuration != null ? vulnerability.configuration.getAffectedVersions() : null;
             if (versions != null) {
                 libraryLoop: for (Library library : versionsUsed) {
@@ -0,0 +1,286 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Http client shared by all downloads. Connections are kept open and reused between requests, responses are
+ * requested gzip compressed and decoded here. Every request has a connect timeout and a timeout for the
+ * response headers to arrive. The body has no overall timeout, large feeds take long, but a read of it fails
+ * when no data arrives for BODY_IDLE_TIMEOUT. The number of requests, the bytes received on the wire and the
+ * time until the responses arrived are counted for all requests.
+ */
+public class HttpTransport {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(120);
+    private static final Duration BODY_IDLE_TIMEOUT = Duration.ofSeconds(60);
+    private static final HttpTransport shared = new HttpTransport(BODY_IDLE_TIMEOUT);
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong latencyMillis = new AtomicLong();
+    private final Duration bodyIdleTimeout;
+
+    HttpTransport(Duration bodyIdleTimeout) {
+        this.bodyIdleTimeout = bodyIdleTimeout;
+    }
+
+    public static HttpTransport shared() {
+        return shared;
+    }
+
+    public CompletableFuture<Response> sendAsync(HttpRequest.Builder request) {
+        return sendAsync(request, true);
+    }
+
+    /**
+     * @param compressed whether the response may be gzip encoded, false for range requests of files that
+     *                   must be received byte by byte as stored
+     */
+    public CompletableFuture<Response> sendAsync(HttpRequest.Builder request, boolean compressed) {
+        request.timeout(RESPONSE_TIMEOUT);
+        if (compressed) {
+            request.header("Accept-Encoding", "gzip");
+        }
+        long startTime = System.nanoTime();
+        requests.incrementAndGet();
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream()).thenApply(response -> {
+            latencyMillis.addAndGet((System.nanoTime() - startTime) / 1000000);
+            InputStream body = new CountingInputStream(new IdleTimeoutInputStream(response.body(), bodyIdleTimeout), bytesReceived);
+            if (response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false)) {
+                body = new GzipBodyInputStream(body);
+            }
+            return new Response(response.statusCode(), response.headers(), body);
+        });
+    }
+
+    public Response send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return send(request, true);
+    }
+
+    public Response send(HttpRequest.Builder request, boolean compressed) throws IOException, InterruptedException {
+        try {
+            return sendAsync(request, compressed).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return summed time until the response headers arrived
+     */
+    public long latencyMillis() {
+        return latencyMillis.get();
+    }
+
+    public String statistics() {
+        long count = requests.get();
+        return count + " http requests, " + bytesReceived.get() / 1024 + " kB received, "
+                + (count > 0 ? latencyMillis.get() / count : 0) + " ms average latency";
+    }
+
+    public static class Response {
+        public final int statusCode;
+        public final HttpHeaders headers;
+        public final InputStream body;
+
+        Response(int statusCode, HttpHeaders headers, InputStream body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String header(String name) {
+            return headers.firstValue(name).orElse(null);
+        }
+
+        /**
+         * @return length of the body as sent, -1 if unknown
+         */
+        public long contentLength() {
+            return headers.firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        /**
+         * Discards the body, the connection can then be reused.
+         */
+        public void discard() {
+            try (InputStream stream = body) {
+                stream.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                // nothing to do, the connection is not reused then
+            }
+        }
+    }
+}
+
+class CountingInputStream extends FilterInputStream {
+    private final AtomicLong counter;
+
+    CountingInputStream(InputStream in, AtomicLong counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            counter.incrementAndGet();
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+            counter.addAndGet(count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(count);
+        counter.addAndGet(skipped);
+        return skipped;
+    }
+}
+
+/**
+ * Fails a read that receives no data for the timeout. Each read schedules a timeout that closes the stream,
+ * which ends the blocked read, and cancels it when the read returns. Time the caller spends between reads does
+ * not count, and a body that is abandoned without being closed leaves nothing scheduled.
+ */
+class IdleTimeoutInputStream extends FilterInputStream {
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "http-body-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long timeoutMillis;
+    private volatile boolean timedOut = false;
+
+    IdleTimeoutInputStream(InputStream in, Duration timeout) {
+        super(in);
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    /**
+     * @return number of reads currently waiting for data, for tests
+     */
+    static int pendingTimeouts() {
+        return timer.getQueue().size();
+    }
+
+    private ScheduledFuture<?> startTimeout() {
+        return timer.schedule(() -> {
+            timedOut = true;
+            try {
+                close();
+            } catch (IOException e) {
+                // the read in progress fails either way
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int read() throws IOException {
+        ScheduledFuture<?> timeout = startTimeout();
+        try {
+            return super.read();
+        } catch (IOException e) {
+            throw failure(e);
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        ScheduledFuture<?> timeout = startTimeout();
+        try {
+            return super.read(buffer, offset, length);
+        } catch (IOException e) {
+            throw failure(e);
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    private IOException failure(IOException e) {
+        if (timedOut) {
+            HttpTimeoutException timeout = new HttpTimeoutException("No data received for " + timeoutMillis + " ms");
+            timeout.initCause(e);
+            return timeout;
+        }
+        return e;
+    }
+}
+
+/**
+ * Decodes a gzip encoded body. The gzip header is only read on the first read, so that creating the stream does
+ * not wait for the body on the thread that completed the response.
+ */
+class GzipBodyInputStream extends InputStream {
+    private final InputStream compressed;
+    private InputStream decoded;
+
+    GzipBodyInputStream(InputStream compressed) {
+        this.compressed = compressed;
+    }
+
+    private InputStream decoded() throws IOException {
+        if (decoded == null) {
+            decoded = new GZIPInputStream(compressed, 64 * 1024);
+        }
+        return decoded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return decoded().read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return decoded().read(buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compressed.close();
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous GET requests to the NVD APIs. Every request first takes a permit from the NVD rate limiter,
+ * waiting for permits happens on a separate thread so callers can start any number of requests at once.
+ * The requests go through the shared http transport, decoding the responses is left to the caller.
+ * <p>
+ * Requests refused by NVD (403, 429, 5xx) or failing to connect are retried after Retry-After, or after a
+ * delay doubled for every retry. After repeated failures the circuit breaker of the host fails further
+ * requests at once for a while, instead of adding to an outage.
+ */
+public class NVDClient {
+    private static final Set<Integer> RETRY_CODES = Set.of(403, 429, 500, 502, 503, 504);
+    private static final long MAX_RETRY_DELAY = 5L * 60L * 1000L;
+    // dates in the query parameters of the NVD APIs, with the utc offset already url encoded
+    static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'%2B00:00'").withZone(ZoneOffset.UTC);
+    // permits are handed out one at a time anyway, a single thread waits for them in request order
+    private static final ExecutorService permitExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "nvd-rate-limit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final RateLimiter rateLimiter;
+    private final String apiKey;
+    private int retries = 0;
+    private long retryDelayMillis = 0;
+    private int circuitBreakerThreshold = Integer.MAX_VALUE;
+    private long circuitBreakerMillis = 0;
+
+    public NVDClient(Settings settings) {
+        this(RateLimiter.forNVD(settings), settings.nvdApiKey);
+        this.retries = settings.nvdRetries != null ? settings.nvdRetries : 0;
+        this.retryDelayMillis = (settings.nvdRetryDelay != null ? settings.nvdRetryDelay : 0L) * 1000;
+        if (settings.nvdCircuitBreakerThreshold != null && settings.nvdCircuitBreakerThreshold > 0) {
+            this.circuitBreakerThreshold = settings.nvdCircuitBreakerThreshold;
+            this.circuitBreakerMillis = (settings.nvdCircuitBreakerInterval != null ? settings.nvdCircuitBreakerInterval : 0L) * 1000;
+        }
+    }
+
+    public NVDClient(RateLimiter rateLimiter, String apiKey) {
+        this.rateLimiter = rateLimiter;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * @return future of the response body, completes exceptionally with an IOException for other responses
+     * than 200 once the retries are used up
+     */
+    public CompletableFuture<InputStream> get(String url) {
+        URI uri = URI.create(url);
+        return get(uri, CircuitBreaker.forHost(uri.getAuthority(), circuitBreakerThreshold, circuitBreakerMillis), 0);
+    }
+
+    private CompletableFuture<InputStream> get(URI uri, CircuitBreaker circuitBreaker, int retry) {
+        if (!circuitBreaker.allowRequest()) {
+            return CompletableFuture.failedFuture(paused(uri));
+        }
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, permitExecutor).thenCompose(permit -> {
+            // the breaker may have opened while this request waited for its permit
+            if (!circuitBreaker.allowRequest()) {
+                return CompletableFuture.failedFuture(paused(uri));
+            }
+            LoggerHelper.log(LogLevel.DEBUG, "[*] Requesting: " + uri);
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+            if (apiKey != null && !apiKey.isEmpty()) {
+                request.header("apiKey", apiKey);
+            }
+            return HttpTransport.shared().sendAsync(request);
+        }).handle((response, error) -> {
+            if (error == null && response.statusCode == 200) {
+                circuitBreaker.success();
+                return CompletableFuture.completedFuture(response.body);
+            }
+
+            IOException failure;
+            boolean retryable;
+            long retryAfter = -1;
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                retryable = cause instanceof IOException && !(cause instanceof CircuitOpenException);
+            } else {
+                response.discard();
+                failure = new IOException("Failed to fetch data. Response code: " + response.statusCode);
+                retryable = RETRY_CODES.contains(response.statusCode);
+                retryAfter = retryAfter(response.header("Retry-After"));
+            }
+            if (!retryable) {
+                return CompletableFuture.<InputStream>failedFuture(failure);
+            }
+
+            circuitBreaker.failure();
+            if (retry >= retries) {
+                return CompletableFuture.<InputStream>failedFuture(failure);
+            }
+            long delay = Math.min(retryAfter >= 0 ? retryAfter : retryDelayMillis << retry, MAX_RETRY_DELAY);
+            LoggerHelper.log(LogLevel.DEBUG, "[i] " + failure.getMessage() + ", retrying in " + delay + " ms");
+            return CompletableFuture.runAsync(() -> {
+            }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, permitExecutor))
+                    .thenCompose(ignored -> get(uri, circuitBreaker, retry + 1));
+        }).thenCompose(future -> future);
+    }
+
+    private static IOException paused(URI uri) {
+        return new CircuitOpenException("Requests to " + uri.getAuthority() + " paused after repeated failures");
+    }
+
+    /**
+     * Request refused by the open circuit breaker, it is neither retried nor counted as a failure.
+     */
+    private static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return milliseconds to wait from a Retry-After header in seconds or as http date, -1 without one
+     */
+    static long retryAfter(String header) {
+        if (header == null || header.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(header.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+}
+
+/**
+ * Counts consecutive failed requests to a host. Once they reach the threshold requests are refused for the
+ * given time. Afterwards requests pass again, but a single further failure refuses them anew until a request
+ * succeeds.
+ */
+class CircuitBreaker {
+    private static final Map<String, CircuitBreaker> hosts = new HashMap<>();
+
+    private final int threshold;
+    private final long openMillis;
+    private int failures = 0;
+    private long openUntil = 0;
+
+    CircuitBreaker(int threshold, long openMillis) {
+        this.threshold = threshold;
+        this.openMillis = openMillis;
+    }
+
+    static CircuitBreaker forHost(String host, int threshold, long openMillis) {
+        synchronized (hosts) {
+            return hosts.computeIfAbsent(host + "/" + threshold + "/" + openMillis, key -> new CircuitBreaker(threshold, openMillis));
+        }
+    }
+
+    synchronized boolean allowRequest() {
+        return System.currentTimeMillis() >= openUntil;
+    }
+
+    synchronized void success() {
+        failures = 0;
+        openUntil = 0;
+    }
+
+    synchronized void failure() {
+        failures++;
+        if (failures >= threshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+            LoggerHelper.log(LogLevel.ERROR, "[!] " + failures + " failed requests in a row, pausing requests for " + openMillis / 1000 + " s");
+        }
+    }
+}
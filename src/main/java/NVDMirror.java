@@ -0,0 +1,252 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local copy of the NVD cve data built from the NVD json 2.0 data feeds, for analysing without network.
+ * Every cve is stored once, in its latest revision, as json in cves.data and cves.index maps "vendor:product" of every cpe in the
+ * configurations of a cve to the "offset:length" locations of those cves. The mirror is rebuilt as a whole,
+ * it should not be queried while it is being built.
+ */
+public class NVDMirror implements AutoCloseable {
+    private final Path dataPath;
+    private final Path indexPath;
+    private final Gson gson = new Gson();
+    private SortedIndex index;
+    private FileChannel data;
+
+    public NVDMirror(Path folder) {
+        this.dataPath = folder.resolve("cves.data");
+        this.indexPath = folder.resolve("cves.index");
+    }
+
+    public static NVDMirror forSettings(Settings settings) throws URISyntaxException {
+        return new NVDMirror(Paths.get(settings.homeFolder.toURI()).resolve("nvd-mirror"));
+    }
+
+    public boolean exists() {
+        return Files.exists(dataPath) && Files.exists(indexPath);
+    }
+
+    /**
+     * @return "vendor:product" of the cpe or null if it is not a cpe 2.3 string
+     */
+    static String productKey(String cpe23) {
+        String[] components = cpe23.toLowerCase().split(":");
+        if (components.length < 5) {
+            return null;
+        }
+        return components[3] + ":" + components[4];
+    }
+
+    /**
+     * Builds the mirror from the nvdcve json feeds (.json or .json.gz) in the folder. Feeds are parsed in
+     * parallel, a cve found in several feeds is kept in the version modified last.
+     */
+    public void build(Path feedFolder, int parallelism) throws IOException {
+        List<Path> feeds;
+        try (Stream<Path> files = Files.list(feedFolder)) {
+            feeds = files.filter(file -> file.getFileName().toString().endsWith(".json") || file.getFileName().toString().endsWith(".json.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (feeds.isEmpty()) {
+            throw new IOException("No NVD json feeds found in " + feedFolder);
+        }
+
+        LoggerHelper.log(LogLevel.INFO, "[*] Building NVD mirror from " + feeds.size() + " feeds with " + parallelism + " threads ...");
+        long startTime = System.nanoTime();
+        close();
+        Files.createDirectories(dataPath.getParent());
+        Path tempData = Files.createTempFile(dataPath.getParent(), "cves", ".data.tmp");
+        Path compactedData = Files.createTempFile(dataPath.getParent(), "cves", ".data.tmp");
+        Map<String, MirroredCVE> cves = new HashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            try (FileChannel output = FileChannel.open(tempData, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                CompletionService<List<MirroredCVE>> completionService = new ExecutorCompletionService<>(executor);
+                for (Path feed : feeds) {
+                    completionService.submit(() -> readFeed(feed));
+                }
+
+                for (int i = 0; i < feeds.size(); i++) {
+                    for (MirroredCVE cve : completionService.take().get()) {
+                        cve.offset = output.position();
+                        output.write(ByteBuffer.wrap(cve.json));
+                        cve.json = null;
+
+                        MirroredCVE existing = cves.get(cve.cveId);
+                        if (existing == null || compare(cve.lastModified, existing.lastModified) > 0) {
+                            cves.put(cve.cveId, cve);
+                        }
+                    }
+                }
+
+                // only the latest revision of every cve is kept, superseded ones are left behind in the temp file
+                try (FileChannel compacted = FileChannel.open(compactedData, StandardOpenOption.WRITE)) {
+                    List<MirroredCVE> latest = new ArrayList<>(cves.values());
+                    latest.sort(Comparator.comparing(cve -> cve.cveId));
+                    for (MirroredCVE cve : latest) {
+                        long offset = compacted.position();
+                        long copied = 0;
+                        while (copied < cve.length) {
+                            copied += output.transferTo(cve.offset + copied, cve.length - copied, compacted);
+                        }
+                        cve.offset = offset;
+                    }
+                }
+            }
+            Files.move(compactedData, dataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Building NVD mirror was interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(tempData);
+            Files.deleteIfExists(compactedData);
+        }
+
+        Map<String, StringBuilder> locations = new HashMap<>();
+        for (MirroredCVE cve : cves.values()) {
+            for (String product : cve.products) {
+                StringBuilder builder = locations.computeIfAbsent(product, key -> new StringBuilder());
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(cve.offset).append(':').append(cve.length);
+            }
+        }
+        Map<String, String> entries = new HashMap<>();
+        for (Map.Entry<String, StringBuilder> location : locations.entrySet()) {
+            entries.put(location.getKey(), location.getValue().toString());
+        }
+        SortedIndex.write(indexPath, entries);
+
+        LoggerHelper.log(LogLevel.INFO, "[i] NVD mirror built with " + cves.size() + " cves for " + entries.size() + " products in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    private static int compare(String first, String second) {
+        return String.valueOf(first).compareTo(String.valueOf(second));
+    }
+
+    private List<MirroredCVE> readFeed(Path feed) throws IOException {
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Reading NVD feed: " + feed);
+        CVEPage page;
+        try (InputStream inputStream = feed.getFileName().toString().endsWith(".gz")
+                ? new GZIPInputStream(Files.newInputStream(feed), 64 * 1024)
+                : Files.newInputStream(feed)) {
+            page = NVDResponseReader.readPage(inputStream);
+        }
+
+        List<MirroredCVE> cves = new ArrayList<>(page.vulnerabilities.size());
+        for (CVEData cveData : page.vulnerabilities) {
+            if (cveData.cve == null || cveData.cve.cveId == null) {
+                continue;
+            }
+            MirroredCVE cve = new MirroredCVE();
+            cve.cveId = cveData.cve.cveId;
+            cve.lastModified = cveData.lastModifiedDate;
+            for (CPEMatch match : cveData.configuration.getAffectedVersions()) {
+                String product = productKey(match.originalcpeString);
+                if (product != null) {
+                    cve.products.add(product);
+                }
+            }
+            cve.json = gson.toJson(cveData).getBytes(StandardCharsets.UTF_8);
+            cve.length = cve.json.length;
+            cves.add(cve);
+        }
+        LoggerHelper.log(LogLevel.DEBUG, "[i] Read " + cves.size() + " cves from " + feed);
+        return cves;
+    }
+
+    /**
+     * @return the cves whose configurations contain the vendor and product of the cpe
+     */
+    public synchronized List<CVEData> query(String cpe) throws IOException {
+        List<CVEData> cveList = new ArrayList<>();
+        String product = productKey(cpe);
+        if (product == null) {
+            return cveList;
+        }
+
+        if (index == null) {
+            index = SortedIndex.open(indexPath);
+            data = FileChannel.open(dataPath, StandardOpenOption.READ);
+        }
+
+        String locations = index.get(product);
+        if (locations == null) {
+            return cveList;
+        }
+        for (String location : locations.split(",")) {
+            int separator = location.indexOf(':');
+            long offset = Long.parseLong(location.substring(0, separator));
+            int length = Integer.parseInt(location.substring(separator + 1));
+
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (data.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("NVD mirror data ends before offset " + offset);
+                }
+            }
+            try {
+                cveList.add(gson.fromJson(new String(buffer.array(), StandardCharsets.UTF_8), CVEData.class));
+            } catch (JsonParseException e) {
+                throw new IOException("Could not read cve from NVD mirror: " + e.getMessage(), e);
+            }
+        }
+        return cveList;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (data != null) {
+            data.close();
+            data = null;
+        }
+    }
+}
+
+class MirroredCVE {
+    String cveId;
+    String lastModified;
+    Set<String> products = new LinkedHashSet<>();
+    byte[] json;
+    long offset;
+    int length;
+}
@@ -0,0 +1,280 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming decoder for responses of the NVD CVE API 2.0. The response is read token by token and the model
+ * objects are built directly, without a string copy of the response or a generic json tree in between.
+ * The objects are the same as those built by the constructors taking json maps. Descriptions and references
+ * are kept as json bytes, see CVE.
+ */
+public class NVDResponseReader {
+    private static final Gson gson = new Gson();
+    private static final Type METRICS_TYPE = new TypeToken<Map<String, Object>>() {
+    }.getType();
+
+    public static CVEPage readPage(InputStream inputStream) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024));
+        try {
+            CVEPage page = new CVEPage();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "resultsPerPage":
+                        page.resultsPerPage = reader.nextInt();
+                        break;
+                    case "totalResults":
+                        page.totalResults = reader.nextInt();
+                        break;
+                    case "vulnerabilities":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            page.vulnerabilities.add(readCVEData(reader));
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            return page;
+        } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+            throw new IOException("Could not parse NVD response: " + e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static CVEData readCVEData(JsonReader reader) throws IOException {
+        CVEData cveData = new CVEData();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "cve":
+                    readCVE(reader, cveData);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return cveData;
+    }
+
+    private static void readCVE(JsonReader reader, CVEData cveData) throws IOException {
+        CVE cve = new CVE();
+        cveData.cve = cve;
+        cveData.configuration = new Configuration();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    cve.cveId = nextString(reader);
+                    break;
+                case "published":
+                    cveData.publishedDate = nextString(reader);
+                    break;
+                case "lastModified":
+                    cveData.lastModifiedDate = nextString(reader);
+                    break;
+                case "descriptions":
+                    // kept as json, only decoded when a finding is reported
+                    cve.descriptions = CVE.raw(reader);
+                    break;
+                case "problemtype":
+                    cve.problemType = readProblemType(reader);
+                    break;
+                case "references":
+                    cve.references = CVE.raw(reader);
+                    break;
+                case "metrics":
+                    // small and irregular, decoded through a map with the same constructor as the map decoding
+                    Map<String, Object> metrics = gson.fromJson(reader, METRICS_TYPE);
+                    cveData.impact = metrics != null ? new Impact(metrics) : null;
+                    break;
+                case "configurations":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        cveData.configuration.nodes.add(readNode(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads [{"lang": .., "value": ..}, ..] and appends them to the text as "lang: value, lang: value".
+     */
+    private static String readLanguageValues(JsonReader reader, String text) throws IOException {
+        StringBuilder builder = new StringBuilder(text);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String language = null;
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "lang":
+                        language = nextString(reader);
+                        break;
+                    case "value":
+                        value = nextString(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(language).append(": ").append(value);
+        }
+        reader.endArray();
+        return builder.toString();
+    }
+
+    private static String readProblemType(JsonReader reader) throws IOException {
+        String problemType = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("problemtype_data")) {
+                problemType = "";
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("description")) {
+                            problemType = readLanguageValues(reader, problemType);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return problemType;
+    }
+
+    /**
+     * Reads a configuration, or a child node, as one node: children and cpe matches of all its nodes are
+     * collected and the operator of the last one is kept.
+     */
+    private static Node readNode(JsonReader reader) throws IOException {
+        List<Node> children = new ArrayList<>();
+        List<CPEMatch> cpeMatches = new ArrayList<>();
+        String operator = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("nodes")) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                operator = "--"; // should not happen
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "children":
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                children.add(readNode(reader));
+                            }
+                            reader.endArray();
+                            break;
+                        case "cpeMatch":
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                cpeMatches.add(readCPEMatch(reader));
+                            }
+                            reader.endArray();
+                            break;
+                        case "operator":
+                            operator = nextString(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return new Node(children, cpeMatches, operator);
+    }
+
+    private static CPEMatch readCPEMatch(JsonReader reader) throws IOException {
+        CPEMatch cpeMatch = new CPEMatch();
+        String criteria = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "criteria":
+                    criteria = nextString(reader);
+                    break;
+                case "vulnerable":
+                    cpeMatch.vulnerable = reader.nextBoolean();
+                    break;
+                case "versionEndExcluding":
+                    cpeMatch.versionEndExcluding = nextString(reader);
+                    break;
+                case "versionEndIncluding":
+                    cpeMatch.versionEndIncluding = nextString(reader);
+                    break;
+                case "versionStartIncluding":
+                    cpeMatch.versionStartIncluding = nextString(reader);
+                    break;
+                case "versionStartExcluding":
+                    cpeMatch.versionStartExcluding = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        cpeMatch.setCriteria(criteria);
+        return cpeMatch;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolling window rate limiter: at most the given number of permits are handed out within any window.
+ * Callers only block when the window is full.
+ * <p>
+ * With a state file the issued permits are kept in the file instead of memory, so all processes using the
+ * same file share one budget. The file is locked while a permit is taken and holds the number of issued
+ * permits followed by their times in milliseconds.
+ */
+public class RateLimiter {
+    private static final int NVD_PERMITS = 5;
+    private static final int NVD_PERMITS_WITH_KEY = 50;
+    private static final Map<String, RateLimiter> nvdLimiters = new HashMap<>();
+
+    private final int permits;
+    private final long windowMillis;
+    private final Path stateFile;
+    private final Deque<Long> issued = new ArrayDeque<>();
+
+    public RateLimiter(int permits, long windowMillis) {
+        this(permits, windowMillis, null);
+    }
+
+    public RateLimiter(int permits, long windowMillis, Path stateFile) {
+        this.permits = permits;
+        this.windowMillis = windowMillis;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * @return limiter shared by every NVD request with the same limits: without an api key NVD allows
+     * 5 requests in a rolling 30 second window, with a key 50. The issued permits are kept in the home folder,
+     * processes using the same home folder share the budget.
+     */
+    public static RateLimiter forNVD(Settings settings) {
+        int permits = settings.nvdRequestsPerWindow != null && settings.nvdRequestsPerWindow > 0
+                ? settings.nvdRequestsPerWindow
+                : settings.nvdApiKey != null && !settings.nvdApiKey.isEmpty() ? NVD_PERMITS_WITH_KEY : NVD_PERMITS;
+        long windowMillis = (settings.nvdRateWindow != null ? settings.nvdRateWindow : 30L) * 1000;
+
+        Path stateFile = null;
+        try {
+            stateFile = Paths.get(settings.homeFolder.toURI()).resolve("nvd-rate.state");
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Home folder is not a local folder, NVD rate limit is not shared: " + e.getMessage());
+        }
+
+        Path sharedStateFile = stateFile;
+        synchronized (nvdLimiters) {
+            return nvdLimiters.computeIfAbsent(permits + "/" + windowMillis + "/" + stateFile,
+                    key -> new RateLimiter(permits, windowMillis, sharedStateFile));
+        }
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long waitTime;
+            if (stateFile != null) {
+                try {
+                    waitTime = acquireShared();
+                } catch (IOException e) {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Could not use rate limit state " + stateFile + ": " + e.getMessage());
+                    waitTime = tryAcquire(issued, System.currentTimeMillis());
+                }
+            } else {
+                waitTime = tryAcquire(issued, System.currentTimeMillis());
+            }
+
+            if (waitTime == 0) {
+                return;
+            }
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Rate limit reached, waiting " + waitTime + " ms");
+            wait(waitTime);
+        }
+    }
+
+    /**
+     * @return 0 if a permit was taken, otherwise the time until the oldest permit leaves the window
+     */
+    private long tryAcquire(Deque<Long> issued, long now) {
+        while (!issued.isEmpty() && issued.peekFirst() + windowMillis <= now) {
+            issued.removeFirst();
+        }
+        if (issued.size() < permits) {
+            issued.addLast(now);
+            return 0;
+        }
+        return Math.max(1, issued.peekFirst() + windowMillis - now);
+    }
+
+    private long acquireShared() throws IOException {
+        // file locks are held per process, limiters of the same process take turns here
+        synchronized (RateLimiter.class) {
+            return acquireLocked();
+        }
+    }
+
+    private long acquireLocked() throws IOException {
+        try (FileChannel channel = FileChannel.open(stateFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                channel.read(buffer, 0);
+                buffer.flip();
+
+                Deque<Long> sharedIssued = new ArrayDeque<>();
+                int count = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+                for (int i = 0; i < count && buffer.remaining() >= 8; i++) {
+                    sharedIssued.addLast(buffer.getLong());
+                }
+
+                long waitTime = tryAcquire(sharedIssued, System.currentTimeMillis());
+                if (waitTime == 0) {
+                    ByteBuffer state = ByteBuffer.allocate(4 + 8 * sharedIssued.size());
+                    state.putInt(sharedIssued.size());
+                    for (long time : sharedIssued) {
+                        state.putLong(time);
+                    }
+                    state.flip();
+                    channel.write(state, 0);
+                    channel.truncate(state.limit());
+                }
+                return waitTime;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+}
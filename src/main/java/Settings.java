@@ -11,6 +11,24 @@ public class Settings {
     public Long specTranslationTimeInterval = 7L * 60L * 60L * 24L; // default one week
     public Long cpeTimeInterval = 7L * 60L * 60L * 24L; // default one week
     public Long vulnerabilityTimeInterval = 1L * 60L * 60L * 24L; // default one day
+    public Boolean vulnerabilityStaleWhileRevalidate = false; // answer outdated vulnerability data at once and update it in the background
+    public Long vulnerabilityHardStaleInterval = 7L * 60L * 60L * 24L; // seconds after which outdated vulnerability data is no longer answered
+    public Double vulnerabilityRefreshJitter = 0.1; // part of vulnerabilityTimeInterval by which updates of different cpes are spread
+    public Long cpeMissTimeInterval = 1L * 60L * 60L * 24L; // seconds before a library without cpe is looked up again, doubled on every miss
+    public Long cpeMissMaxTimeInterval = 30L * 60L * 60L * 24L; // upper limit for the doubled interval
+    public Integer cpeParseParallelism = 0; // threads used to parse the cpe dictionary, 0 uses all cores
+    public String cpeFeedUrl = "https://nvd.nist.gov/feeds/xml/cpe/dictionary/official-cpe-dictionary_v2.3.xml.gz";
+    public String cpeApiUrl = "https://services.nvd.nist.gov/rest/json/cpes/2.0";
+    public CPEUpdateMode cpeUpdateMode = CPEUpdateMode.api; // api fetches only modified cpe records once an index exists
+    public String cveApiUrl = "https://services.nvd.nist.gov/rest/json/cves/2.0";
+    public String nvdApiKey; // optional, raises the request limit from 5 to 50 requests per window
+    public Integer nvdRequestsPerWindow; // overrides the limit derived from nvdApiKey
+    public Long nvdRateWindow = 30L; // seconds
+    public Integer nvdRetries = 3; // retries of an NVD request that failed with 403, 429 or 5xx or could not connect
+    public Long nvdRetryDelay = 6L; // seconds before the first retry, doubled for every further one unless NVD sends Retry-After
+    public Integer nvdCircuitBreakerThreshold = 5; // consecutive failed NVD requests after which requests are paused
+    public Long nvdCircuitBreakerInterval = 60L; // seconds NVD requests are paused
+    public Boolean nvdMirror = false; // answer vulnerability queries from the local mirror built with the mirror action
     public URL homeFolder;
     public URL specDirectory;
 
@@ -21,6 +39,9 @@ public class Settings {
         this.specDirectory = new URL("file:///" + specDirectoryPath);
     }
 }
+enum CPEUpdateMode {
+    feed, api
+}
 class SettingsController implements AutoCloseable {
     Settings settings;
     URL url;
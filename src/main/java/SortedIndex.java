@@ -0,0 +1,171 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Read only key value file sorted by key. The file is memory-mapped and searched with a binary search,
+ * so lookups do not need to load the entries onto the heap.
+ * <p>
+ * Layout: magic, entry count, one int offset per entry and then the entries as "key\tvalue\n" in utf-8.
+ */
+public class SortedIndex implements AutoCloseable {
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int dataStart;
+
+    private SortedIndex(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an index file");
+        }
+        this.count = buffer.getInt(4);
+        this.dataStart = HEADER_SIZE + count * 4;
+    }
+
+    public static SortedIndex open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new SortedIndex(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file next to the path and moves it in place, readers never see
+     * a partially written index.
+     */
+    public static void write(Path path, Map<String, String> entries) throws IOException {
+        List<byte[][]> sorted = new ArrayList<>(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            sorted.add(new byte[][]{
+                    entry.getKey().getBytes(StandardCharsets.UTF_8),
+                    entry.getValue().getBytes(StandardCharsets.UTF_8)
+            });
+        }
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a[0], b[0]));
+
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream fileStream = Files.newOutputStream(temp);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024))) {
+                output.writeInt(MAGIC);
+                output.writeInt(sorted.size());
+                int offset = 0;
+                for (byte[][] entry : sorted) {
+                    output.writeInt(offset);
+                    offset += entry[0].length + entry[1].length + 2;
+                }
+                for (byte[][] entry : sorted) {
+                    output.write(entry[0]);
+                    output.write('\t');
+                    output.write(entry[1]);
+                    output.write('\n');
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = entryPosition(middle);
+            int comparison = compareKey(position, keyBytes);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return readValue(position + keyBytes.length + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls the consumer for every entry in key order.
+     */
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (int i = 0; i < count; i++) {
+            int position = entryPosition(i);
+            int separator = position;
+            while (buffer.get(separator) != '\t') {
+                separator++;
+            }
+            consumer.accept(readString(position, separator), readValue(separator + 1));
+        }
+    }
+
+    private int entryPosition(int index) {
+        return dataStart + buffer.getInt(HEADER_SIZE + index * 4);
+    }
+
+    private int compareKey(int position, byte[] key) {
+        for (int i = 0; ; i++) {
+            byte stored = buffer.get(position + i);
+            if (stored == '\t') {
+                return i == key.length ? 0 : -1;
+            }
+            if (i == key.length) {
+                return 1;
+            }
+            int comparison = Integer.compare(stored & 0xff, key[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+    }
+
+    private String readValue(int position) {
+        int end = position;
+        while (buffer.get(end) != '\n') {
+            end++;
+        }
+        return readString(position, end);
+    }
+
+    private String readString(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -66,10 +66,8 @@ public class SourceAnalyser {
 
                                         if (libraryName.endsWith(name.toLowerCase())) {
                                             LoggerHelper.log(LogLevel.DEBUG, "[i] Found match");
-                                            String warning = "vulnerable";
-                                            if (cveData.cve != null && cveData.cve.description != null) {
-                                                warning = cveData.cve.description;
-                                            }
+                                            String description = cveData.cve != null ? cveData.cve.description() : null;
+                                            String warning = description != null ? description : "vulnerable";
                                             FileLocation newLocation = new FileLocation(fullPath, count, warning);
                                             fileLocations.add(newLocation);
                                         }
@@ -1,195 +1,450 @@
-import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
-import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-public class VulnerabilityAnalyser {
-    public VulnerabilityDictionary vulnerabilities; // Define it here
-    private URL url;
-    private URL folder;
-    private boolean changed = false;
+public class VulnerabilityAnalyser implements AutoCloseable {
+    private static final int RESULTS_PER_PAGE = 2000; // maximum allowed by NVD
+    private static final int MAX_SWEEP_DAYS = 120; // longest lastModified range allowed by NVD
+    public VulnerabilityStore vulnerabilities;
     public static Settings settings;
+    private final NVDClient client;
+    private NVDMirror mirror;
+    private final Map<String, CompletableFuture<List<CVEData>>> inFlight = new HashMap<>();
 
     public VulnerabilityAnalyser(Settings settings) {
         this.settings = settings;
+        this.client = new NVDClient(settings);
         try {
-            this.folder = settings.homeFolder.toURI().toURL();
-            this.url = new URL(folder, "vulnerabilities.json");
-
-            // Extract the path from the URL without the scheme
-            String urlPath = url.getPath();
-            if (urlPath.startsWith("/")) {
-                urlPath = urlPath.substring(1);
-            }
-            Path path = Paths.get(urlPath.replace("/", File.separator));
-
-            byte[] data = Files.readAllBytes(path);
-            String jsonData = new String(data);
-            Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new DateDeserializer())
-                    .create();
-            VulnerabilityDictionary decoded;
-            try {
-                decoded = gson.fromJson(jsonData, VulnerabilityDictionary.class);
-            } catch (JsonSyntaxException e) {
-                decoded = new VulnerabilityDictionary(new Date());
+            Path folder = Paths.get(settings.homeFolder.toURI());
+            this.vulnerabilities = new VulnerabilityStore(folder.resolve("vulnerabilities"));
+
+            // vulnerabilities.json of earlier versions is imported once
+            Path legacyFile = folder.resolve("vulnerabilities.json");
+            if (!vulnerabilities.exists() && Files.exists(legacyFile)) {
+                LoggerHelper.log(LogLevel.INFO, "[*] Importing " + legacyFile + " to the vulnerability store ...");
+                vulnerabilities.importDictionary(legacyFile);
+                vulnerabilities.save();
             }
-            vulnerabilities = decoded;
-        } catch (MalformedURLException e) {
-            LoggerHelper.log(LogLevel.ERROR, "Error creating URL: " + e.getMessage());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            LoggerHelper.log(LogLevel.ERROR, "Error reading home folder: " + e.getMessage());
         } catch (IOException e) {
-            vulnerabilities = new VulnerabilityDictionary(new Date());
-        } catch (Exception e) {
             LoggerHelper.log(LogLevel.ERROR, "Error reading file: " + e.getMessage());
         }
     }
 
-    class DateDeserializer implements JsonDeserializer<Date> {
-        @Override
-        public Date deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            // Parse Unix timestamp from JSON string
-            String dateString = json.getAsString();
+    public List<CVEData> queryVulnerabilitiesFor(String cpe) {
+        return queryVulnerabilitiesForAsync(cpe).join();
+    }
+
+    /**
+     * Answers from the vulnerability store when the data is recent enough, otherwise queries NVD. Any number of
+     * queries can be started at once, the NVD client keeps them within the rate limit.
+     * <p>
+     * With vulnerabilityStaleWhileRevalidate outdated data is answered at once and updated in the background,
+     * unless it is older than vulnerabilityHardStaleInterval. Closing the analyser waits for these updates.
+     * <p>
+     * Concurrent queries for the same cpe share one update, so every cpe is fetched and stored once.
+     */
+    public CompletableFuture<List<CVEData>> queryVulnerabilitiesForAsync(String cpe) {
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Finding vulnerabilities for cpe: " + cpe);
 
-            // Convert Unix timestamp string to long
-            double unixTimestamp = Double.parseDouble(dateString);
+        VulnerabilityData existingCVEData = this.vulnerabilities.get(cpe);
+        if (existingCVEData != null && !shouldUpdate(existingCVEData, cpe)) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Found existing data");
+            return CompletableFuture.completedFuture(existingCVEData.vulnerabilities);
+        }
 
-            // Convert Unix timestamp to Date object
-            return new Date((long) (unixTimestamp * 1000)); // Multiply by 1000 to convert seconds to milliseconds
+        if (existingCVEData != null && settings.vulnerabilityStaleWhileRevalidate != null && settings.vulnerabilityStaleWhileRevalidate
+                && !isHardStale(existingCVEData.lastUpdated)) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Existing data, updating it in the background.");
+            updateOnce(cpe, existingCVEData);
+            return CompletableFuture.completedFuture(existingCVEData.vulnerabilities);
         }
+        LoggerHelper.log(LogLevel.DEBUG, existingCVEData != null ? "[i] Existing data, but should update." : "[i] No existing data found.");
+
+        return updateOnce(cpe, existingCVEData);
     }
 
-    public List<CVEData> queryVulnerabilitiesFor(String cpe) {
-        LoggerHelper.log(LogLevel.DEBUG, "[*] Finding vulnerabilities for cpe: " + cpe);
+    /**
+     * @return the update of the cpe already in flight, or a new one. An update is removed from the in-flight
+     * table only after its result is stored, so a caller arriving later finds the stored result instead.
+     */
+    private CompletableFuture<List<CVEData>> updateOnce(String cpe, VulnerabilityData existingCVEData) {
+        CompletableFuture<List<CVEData>> pending = new CompletableFuture<>();
+        synchronized (inFlight) {
+            CompletableFuture<List<CVEData>> running = inFlight.putIfAbsent(cpe, pending);
+            if (running != null) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Sharing the query in flight for " + cpe);
+                return running;
+            }
+        }
 
-        if (this.vulnerabilities.dictionary.containsKey(cpe)) {
-            VulnerabilityData existingCVEData = this.vulnerabilities.dictionary.get(cpe);
-            if (shouldUpdate(existingCVEData)) {
-                LoggerHelper.log(LogLevel.DEBUG, "[i] Existing data, but should update.");
-                List<CVEData> cveList = query(cpe);
-                existingCVEData.vulnerabilities = cveList;
-                existingCVEData.lastUpdated = new Date();
-                this.vulnerabilities.dictionary.put(cpe, existingCVEData);
-                this.changed = true;
-                return cveList;
+        // an update finished since the store was read is not repeated
+        VulnerabilityData storedCVEData = this.vulnerabilities.get(cpe);
+        CompletableFuture<List<CVEData>> update = storedCVEData != existingCVEData && storedCVEData != null && !isOutdated(storedCVEData.lastUpdated, cpe)
+                ? CompletableFuture.completedFuture(storedCVEData.vulnerabilities)
+                : update(cpe, existingCVEData);
+        update.whenComplete((cveList, e) -> {
+            synchronized (inFlight) {
+                inFlight.remove(cpe, pending);
+            }
+            if (e != null) {
+                pending.completeExceptionally(e);
             } else {
-                LoggerHelper.log(LogLevel.DEBUG, "[i] Found existing data");
-                return existingCVEData.vulnerabilities;
+                pending.complete(cveList);
             }
-        } else {
-            LoggerHelper.log(LogLevel.DEBUG, "[i] No existing data found.");
-            List<CVEData> cveList = query(cpe);
-            this.vulnerabilities.dictionary.put(cpe, new VulnerabilityData(cveList));
-            this.changed = true;
-            return cveList;
+        });
+        return pending;
+    }
+
+    /**
+     * Answers only the vulnerabilities of at least the given severity, vulnerabilities without a score are
+     * kept. A cpe whose stored summary is below the severity and not outdated is answered without reading its
+     * cves.
+     */
+    public CompletableFuture<List<CVEData>> queryVulnerabilitiesForAsync(String cpe, Severity minSeverity) {
+        if (minSeverity == null) {
+            return queryVulnerabilitiesForAsync(cpe);
+        }
+
+        StoredVulnerabilities stored = this.vulnerabilities.peek(cpe);
+        if (stored != null && stored.summary != null && stored.summary.below(minSeverity) && !isOutdated(stored.lastUpdated, cpe)) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] No vulnerabilities of " + minSeverity + " severity or higher stored for " + cpe);
+            return CompletableFuture.completedFuture(new ArrayList<>());
         }
+
+        return queryVulnerabilitiesForAsync(cpe).thenApply(cveList -> {
+            List<CVEData> filtered = new ArrayList<>();
+            for (CVEData cveData : cveList) {
+                if (cveData.isAtLeast(minSeverity)) {
+                    filtered.add(cveData);
+                }
+            }
+            return filtered;
+        });
+    }
+
+    /**
+     * Stores the fetched vulnerabilities. When fetching fails the stored data is kept and answered instead.
+     */
+    private CompletableFuture<List<CVEData>> update(String cpe, VulnerabilityData existingCVEData) {
+        return fetch(cpe).thenApply(cveList -> {
+            this.vulnerabilities.put(cpe, new VulnerabilityData(cveList));
+            return cveList;
+        }).exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (existingCVEData != null) {
+                LoggerHelper.log(LogLevel.ERROR, "[!] Could not update vulnerabilities of " + cpe + ", using stored data: " + cause.getMessage());
+                return existingCVEData.vulnerabilities;
+            }
+            LoggerHelper.log(LogLevel.ERROR, "[!] Error: " + cause.getMessage());
+            return new ArrayList<>();
+        });
     }
 
     public List<CVEData> query(String cpe) {
-        List<CVEData> cveList = new ArrayList<>();
+        return queryAsync(cpe).join();
+    }
 
-        String urlString = "https://services.nvd.nist.gov/rest/json/cves/2.0?virtualMatchString=" + cpe + "&resultsPerPage=2000";
+    /**
+     * Fetches all vulnerabilities for the cpe from the NVD api, or from the mirror when it is used.
+     */
+    public CompletableFuture<List<CVEData>> queryAsync(String cpe) {
+        return fetch(cpe).exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            LoggerHelper.log(LogLevel.ERROR, "[!] Error: " + cause.getMessage());
+            return new ArrayList<>();
+        });
+    }
 
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            // Program waits 6 seconds between requests to avoid exceeding the NVD API limit
-            Thread.sleep(6000);
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                // Read the response data
-                // Assuming you have a method readResponseData() to handle this
-                String responseData = readResponseData(connection.getInputStream());
-
-                // Parse JSON response
-                Map<String, Object> jsonResponse = parseJsonResponse(responseData);
-
-                if (jsonResponse != null) {
-                    Double resultsPerPage = (Double) jsonResponse.get("resultsPerPage");
-                    Double totalResults = (Double) jsonResponse.get("totalResults");
-
-                    if (totalResults > 0) {
-                        //Map<String, Object> result = (Map<String, Object>) jsonResponse.get("vulnerabilities");
-                        List<Map<String, Object>> result = (List<Map<String, Object>>) jsonResponse.get("vulnerabilities");
-
-                        if (result != null) {
-                            for (Map<String, Object> cve : result) {
-                                CVEData cveData = new CVEData(cve);
-                                cveList.add(cveData);
-                            }
-                            /*
-                            List<Map<String, Object>> cves = (List<Map<String, Object>>) result.get("CVE_Items");
-
-                            if (cves != null) {
-                                for (Map<String, Object> cve : cves) {
-                                    CVEData cveData = new CVEData(cve);
-                                    cveList.add(cveData);
-                                }
-                            } else {
-                                LoggerHelper.log(LogLevel.ERROR,"[!] CVE object not found");
-                            }
+    /**
+     * @return future of the vulnerabilities, completes exceptionally when they could not be fetched
+     */
+    private CompletableFuture<List<CVEData>> fetch(String cpe) {
+        if (settings.nvdMirror != null && settings.nvdMirror) {
+            try {
+                return CompletableFuture.completedFuture(queryMirror(cpe));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
 
-                             */
-                        }
+        String urlString = settings.cveApiUrl + "?virtualMatchString=" + cpe + "&resultsPerPage=" + RESULTS_PER_PAGE;
+        return fetchAll(urlString, cpe);
+    }
+
+    /**
+     * Fetches every page of the query. The first page tells the total number of results, the remaining
+     * pages are then requested concurrently and merged in page order.
+     */
+    private CompletableFuture<List<CVEData>> fetchAll(String urlString, String description) {
+        return fetchPage(urlString, 0).thenCompose(firstPage -> {
+            int pageSize = firstPage.resultsPerPage > 0 ? firstPage.resultsPerPage : firstPage.vulnerabilities.size();
+            List<CompletableFuture<CVEPage>> pages = new ArrayList<>();
+            pages.add(CompletableFuture.completedFuture(firstPage));
+            if (pageSize > 0) {
+                for (int startIndex = pageSize; startIndex < firstPage.totalResults; startIndex += pageSize) {
+                    pages.add(fetchPage(urlString, startIndex));
+                }
+            }
+            if (pages.size() > 1) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] " + firstPage.totalResults + " vulnerabilities for " + description + ", fetching " + pages.size() + " pages");
+            }
+
+            return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).<List<CVEData>>thenApply(done -> {
+                // results can move between pages when the data changes during the query, keep every cve once
+                Map<String, CVEData> merged = new LinkedHashMap<>();
+                for (CompletableFuture<CVEPage> page : pages) {
+                    for (CVEData cveData : page.join().vulnerabilities) {
+                        String cveId = cveData.cve != null && cveData.cve.cveId != null ? cveData.cve.cveId : "#" + merged.size();
+                        merged.putIfAbsent(cveId, cveData);
                     }
+                }
+                return new ArrayList<>(merged.values());
+            });
+        });
+    }
+
+    /**
+     * Brings the stored cpes up to date with the cves modified since the oldest of them was updated, a few
+     * paged requests instead of one query per cpe. A modified cve is added to every stored cpe whose vendor and
+     * product it lists as vulnerable, and removed from the ones it no longer lists. The pages are joined into
+     * the stored cpes one at a time as they arrive. The sweep covers at most MAX_SWEEP_DAYS, cpes updated before
+     * that are queried again on their own. A sweep is done at most once per vulnerabilityTimeInterval, the time
+     * of the last one is kept in the store.
+     *
+     * @return number of cpes refreshed, 0 if none was due or the sweep failed
+     */
+    public int refreshModified() {
+        if (settings.nvdMirror != null && settings.nvdMirror) {
+            return 0;
+        }
+
+        Date lastSweep = vulnerabilities.lastSweep();
+        if (lastSweep != null && !isOutdated(lastSweep, null)) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Modified vulnerabilities last fetched " + lastSweep);
+            return 0;
+        }
+
+        Date sweepEnd = new Date();
+        long earliest = sweepEnd.getTime() - MAX_SWEEP_DAYS * 24L * 60L * 60L * 1000L;
+        Map<String, Date> updateTimes;
+        try {
+            updateTimes = vulnerabilities.updateTimes();
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not read vulnerability store: " + e.getMessage());
+            return 0;
+        }
+
+        Date sweepStart = null;
+        boolean due = false;
+        for (Date lastUpdated : updateTimes.values()) {
+            if (lastUpdated.getTime() >= earliest) {
+                sweepStart = sweepStart == null || lastUpdated.before(sweepStart) ? lastUpdated : sweepStart;
+                due |= isOutdated(lastUpdated, null);
+            }
+        }
+        if (!due) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] No stored vulnerability data to refresh");
+            return 0;
+        }
+
+        Map<String, Map<String, CVEData>> refreshing = new LinkedHashMap<>();
+        for (Map.Entry<String, Date> entry : updateTimes.entrySet()) {
+            VulnerabilityData stored = entry.getValue().before(sweepStart) ? null : vulnerabilities.get(entry.getKey());
+            if (stored == null) {
+                continue;
+            }
+            Map<String, CVEData> cves = new LinkedHashMap<>();
+            for (CVEData cveData : stored.vulnerabilities) {
+                boolean hasId = cveData.cve != null && cveData.cve.cveId != null;
+                cves.put(hasId ? cveData.cve.cveId : "#" + cves.size(), cveData);
+            }
+            refreshing.put(entry.getKey(), cves);
+        }
+
+        LoggerHelper.log(LogLevel.INFO, "[*] Fetching vulnerabilities modified since " + sweepStart);
+        String urlString = settings.cveApiUrl + "?lastModStartDate=" + NVDClient.dateFormat.format(sweepStart.toInstant())
+                + "&lastModEndDate=" + NVDClient.dateFormat.format(sweepEnd.toInstant()) + "&resultsPerPage=" + RESULTS_PER_PAGE;
+        int modified = 0;
+        try {
+            int startIndex = 0;
+            while (true) {
+                CVEPage page = fetchPage(urlString, startIndex).join();
+                joinModified(page.vulnerabilities, refreshing);
+                modified += page.vulnerabilities.size();
+                startIndex += page.vulnerabilities.size();
+                if (page.vulnerabilities.isEmpty() || startIndex >= page.totalResults) {
+                    break;
+                }
+            }
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not fetch modified vulnerabilities: " + cause.getMessage());
+            return 0;
+        }
+
+        for (Map.Entry<String, Map<String, CVEData>> entry : refreshing.entrySet()) {
+            VulnerabilityData update = new VulnerabilityData(new ArrayList<>(entry.getValue().values()));
+            update.lastUpdated = sweepEnd;
+            vulnerabilities.put(entry.getKey(), update);
+        }
+        vulnerabilities.setLastSweep(sweepEnd);
+        LoggerHelper.log(LogLevel.INFO, "[i] " + modified + " modified vulnerabilities, refreshed " + refreshing.size() + " cpes");
+        return refreshing.size();
+    }
+
+    /**
+     * Joins a page of modified cves into the cves of the refreshed cpes by id, the stored version is replaced
+     * and keeps its place.
+     */
+    private static void joinModified(List<CVEData> modified, Map<String, Map<String, CVEData>> refreshing) {
+        for (CVEData cveData : modified) {
+            if (cveData.cve == null || cveData.cve.cveId == null) {
+                continue;
+            }
+            Set<String> products = products(cveData);
+            for (Map.Entry<String, Map<String, CVEData>> entry : refreshing.entrySet()) {
+                if (products.contains(NVDMirror.productKey(entry.getKey()))) {
+                    entry.getValue().put(cveData.cve.cveId, cveData);
                 } else {
-                    LoggerHelper.log(LogLevel.ERROR, "[!] No JSON response");
+                    entry.getValue().remove(cveData.cve.cveId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return "vendor:product" of every cpe the cve lists as vulnerable
+     */
+    private static Set<String> products(CVEData cveData) {
+        Set<String> products = new HashSet<>();
+        if (cveData.configuration != null) {
+            for (CPEMatch match : cveData.configuration.getAffectedVersions()) {
+                String product = match.vulnerable ? NVDMirror.productKey(match.originalcpeString) : null;
+                if (product != null) {
+                    products.add(product);
                 }
-            } else {
-                LoggerHelper.log(LogLevel.ERROR, "[!] Failed to fetch data. Response code: " + responseCode);
             }
-        } catch (IOException | InterruptedException e) {
-            LoggerHelper.log(LogLevel.ERROR, "[!] Error: " + e.getMessage());
         }
-        return cveList;
+        return products;
     }
 
-    private String readResponseData(InputStream inputStream) throws IOException {
-        StringBuilder responseData = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                responseData.append(line);
+    private synchronized List<CVEData> queryMirror(String cpe) throws IOException {
+        try {
+            if (mirror == null) {
+                mirror = NVDMirror.forSettings(settings);
             }
+        } catch (URISyntaxException e) {
+            throw new IOException("Could not open NVD mirror: " + e.getMessage(), e);
         }
-        return responseData.toString();
+        if (!mirror.exists()) {
+            throw new IOException("NVD mirror not found, build it with the mirror action");
+        }
+        return mirror.query(cpe);
+    }
+
+    private CompletableFuture<CVEPage> fetchPage(String urlString, int startIndex) {
+        return client.get(urlString + "&startIndex=" + startIndex).thenApply(inputStream -> {
+            try {
+                return decode(inputStream);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
-    private Map<String, Object> parseJsonResponse(String responseData) {
-        // Assuming you are using Gson library for JSON parsing
-        Gson gson = new Gson();
-        Type type = new TypeToken<Map<String, Object>>() {
-        }.getType();
-        return gson.fromJson(responseData, type);
+    /**
+     * Decodes a response page of the NVD CVE API.
+     */
+    CVEPage decode(InputStream inputStream) throws IOException {
+        return NVDResponseReader.readPage(inputStream);
     }
 
     public boolean shouldUpdate(VulnerabilityData data) {
+        return shouldUpdate(data, null);
+    }
+
+    public boolean shouldUpdate(VulnerabilityData data, String cpe) {
         LoggerHelper.log(LogLevel.INFO, "[i] Vulnerability data last updated: " + data.lastUpdated.toString());
 
+        if (isOutdated(data.lastUpdated, cpe)) {
+            LoggerHelper.log(LogLevel.INFO, "[i] Will update vulnerability data");
+            return true;
+        }
+
+        LoggerHelper.log(LogLevel.DEBUG, "[i] No update for vulnerability data");
+        return false;
+    }
+
+    /**
+     * The interval of a cpe is shortened by up to vulnerabilityRefreshJitter, fixed per cpe, so data stored
+     * at the same time is not outdated all at once.
+     */
+    private boolean isOutdated(Date lastUpdated, String cpe) {
         if (VulnerabilityAnalyser.settings.vulnerabilityTimeInterval != null) {
             // check if time since last updated is larger than the allowed timeinterval for updates
             long currentTime = new Date().getTime();
-            long lastUpdatedTime = data.lastUpdated.getTime();
-            long timeInterval = VulnerabilityAnalyser.settings.vulnerabilityTimeInterval;
+            long lastUpdatedTime = lastUpdated.getTime();
+            long timeInterval = VulnerabilityAnalyser.settings.vulnerabilityTimeInterval * 1000;
 
-            if ((currentTime - lastUpdatedTime) > timeInterval) {
-                LoggerHelper.log(LogLevel.INFO, "[i] Will update vulnerability data");
-                return true;
+            Double jitter = VulnerabilityAnalyser.settings.vulnerabilityRefreshJitter;
+            if (cpe != null && jitter != null && jitter > 0) {
+                double spread = (cpe.hashCode() & 0xffff) / 65536.0;
+                timeInterval -= (long) (timeInterval * Math.min(jitter, 1.0) * spread);
             }
-        }
 
-        LoggerHelper.log(LogLevel.DEBUG, "[i] No update for vulnerability data");
+            return (currentTime - lastUpdatedTime) > timeInterval;
+        }
         return false;
     }
+
+    private boolean isHardStale(Date lastUpdated) {
+        Long hardStaleInterval = VulnerabilityAnalyser.settings.vulnerabilityHardStaleInterval;
+        return hardStaleInterval == null || new Date().getTime() - lastUpdated.getTime() > hardStaleInterval * 1000;
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<List<CVEData>>> pending;
+        synchronized (inFlight) {
+            pending = new ArrayList<>(inFlight.values());
+        }
+        if (!pending.isEmpty()) {
+            LoggerHelper.log(LogLevel.DEBUG, "[*] Waiting for " + pending.size() + " background updates ...");
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        try {
+            if (vulnerabilities.isChanged()) {
+                vulnerabilities.save();
+            }
+            vulnerabilities.close();
+            if (mirror != null) {
+                mirror.close();
+            }
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.ERROR, "[!] Could not save vulnerabilities: " + e.getMessage());
+        }
+    }
 }
 
 class VulnerabilityDictionary {
@@ -200,13 +455,21 @@ class VulnerabilityDictionary {
     }
 }
 
+class CVEPage {
+    public int resultsPerPage;
+    public int totalResults;
+    public List<CVEData> vulnerabilities = new ArrayList<>();
+}
+
 class VulnerabilityData {
     public Date lastUpdated;
     public List<CVEData> vulnerabilities;
+    public VulnerabilitySummary summary;
 
     public VulnerabilityData(List<CVEData> vulnerabilities) {
         this.lastUpdated = new Date();
         this.vulnerabilities = vulnerabilities;
+        this.summary = VulnerabilitySummary.of(vulnerabilities);
     }
 }
 
@@ -217,6 +480,9 @@ class CVEData {
     public Impact impact;
     public CVE cve; // required value
 
+    CVEData() {
+    }
+
     public CVEData(Map<String, Object> fromJson) {
 
 
@@ -230,19 +496,42 @@ class CVEData {
         this.configuration = new Configuration((List<Map<String, Object>>) cveJson.get("configurations"));
 
 
-        Map<String, Object> impactJson = (Map<String, Object>) fromJson.get("impact");
+        Map<String, Object> impactJson = (Map<String, Object>) cveJson.get("metrics");
         if (impactJson != null) {
             this.impact = new Impact(impactJson);
         }
 
     }
+
+    /**
+     * @return the cvss metric used for the severity, null if the cve has no score yet
+     */
+    public BaseMetric baseMetric() {
+        return impact != null ? impact.baseMetric() : null;
+    }
+
+    public boolean isAtLeast(Severity minSeverity) {
+        BaseMetric metric = baseMetric();
+        return metric == null || metric.severity.compareTo(minSeverity) >= 0;
+    }
 }
 
+/**
+ * The descriptions and references are only needed when a finding is reported. They are kept as the raw json
+ * bytes of the NVD api and decoded on every call of description() and references(), so stored cves hold no
+ * strings or objects for them.
+ */
+@JsonAdapter(CVEAdapter.class)
 class CVE {
-    public String description;
+    static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
     public String problemType;
-    public List<Reference> references = new ArrayList<>();
     public String cveId;
+    byte[] descriptions; // json of "descriptions", or the description string of earlier versions
+    byte[] references;   // json of "references"
+
+    CVE() {
+    }
 
     public CVE(Map<String, Object> fromJson) {
         if (fromJson.containsKey("id")) {
@@ -250,17 +539,7 @@ class CVE {
         }
 
         if (fromJson.containsKey("descriptions")) {
-            List<Map<String, Object>> descriptionData = (List<Map<String, Object>>) fromJson.get("descriptions");
-            this.description = "";
-            for (Map<String, Object> description : descriptionData) {
-                String language = (String) description.get("lang");
-                String value = (String) description.get("value");
-                if (this.description.isEmpty()) {
-                    this.description = language + ": " + value;
-                } else {
-                    this.description += ", " + language + ": " + value;
-                }
-            }
+            this.descriptions = raw(fromJson.get("descriptions"));
         }
 
         if (fromJson.containsKey("problemtype")) {
@@ -286,17 +565,191 @@ class CVE {
         }
 
         if (fromJson.containsKey("references")) {
-            List<Map<String, Object>> referencesObject = (List<Map<String, Object>>) fromJson.get("references");
-            for (Map<String, Object> obj : referencesObject) {
-                if (obj.containsKey("reference_data")) {
-                    List<Map<String, Object>> referencesData = (List<Map<String, Object>>) obj.get("reference_data");
-                    for (Map<String, Object> reference : referencesData) {
-                        this.references.add(new Reference(reference));
+            this.references = raw(fromJson.get("references"));
+        }
+    }
+
+    /**
+     * @return compact json of a decoded value, the same for json maps and json trees of it
+     */
+    static byte[] raw(Object json) {
+        return json != null && !(json instanceof JsonNull) ? gson.toJson(json).getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Copies the next value of the reader token by token as compact json, the same as raw() of its decoded
+     * value, without building the value in between.
+     *
+     * @return the json, null for a json null
+     */
+    static byte[] raw(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        StringWriter json = new StringWriter();
+        JsonWriter out = new JsonWriter(json);
+        out.setSerializeNulls(false); // members with null values are left out, as gson does
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case NUMBER:
+                    out.jsonValue(in.nextString());
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected end of json");
+            }
+        } while (depth > 0);
+        out.flush();
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the descriptions as "lang: value, lang: value", null if there are none. Decoded on every call,
+     * callers keep the result instead of calling again.
+     */
+    public String description() {
+        if (descriptions == null) {
+            return null;
+        }
+        JsonElement json = JsonParser.parseString(new String(descriptions, StandardCharsets.UTF_8));
+        if (!json.isJsonArray()) {
+            return json.isJsonPrimitive() ? json.getAsString() : null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (JsonElement description : json.getAsJsonArray()) {
+            if (!description.isJsonObject()) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(string(description.getAsJsonObject(), "lang")).append(": ").append(string(description.getAsJsonObject(), "value"));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the references, both the flat list of the 2.0 api and the reference_data lists of the 1.1 feeds
+     */
+    public List<Reference> references() {
+        List<Reference> referenceList = new ArrayList<>();
+        if (references == null) {
+            return referenceList;
+        }
+        JsonElement json = JsonParser.parseString(new String(references, StandardCharsets.UTF_8));
+        if (!json.isJsonArray()) {
+            return referenceList;
+        }
+        for (JsonElement element : json.getAsJsonArray()) {
+            if (!element.isJsonObject()) {
+                continue;
+            }
+            JsonObject object = element.getAsJsonObject();
+            if (object.has("reference_data") && object.get("reference_data").isJsonArray()) {
+                for (JsonElement reference : object.getAsJsonArray("reference_data")) {
+                    if (reference.isJsonObject()) {
+                        referenceList.add(new Reference(reference.getAsJsonObject()));
                     }
                 }
+            } else {
+                referenceList.add(new Reference(object));
             }
+        }
+        return referenceList;
+    }
+
+    static String string(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+}
 
+/**
+ * Writes the raw descriptions and references of a cve back as json. Reads them as raw json again, also
+ * from cves stored by earlier versions with a "description" string and decoded references.
+ */
+class CVEAdapter extends TypeAdapter<CVE> {
+    @Override
+    public void write(JsonWriter out, CVE cve) throws IOException {
+        out.beginObject();
+        out.name("cveId").value(cve.cveId);
+        out.name("problemType").value(cve.problemType);
+        if (cve.descriptions != null) {
+            out.name("descriptions").jsonValue(new String(cve.descriptions, StandardCharsets.UTF_8));
+        }
+        if (cve.references != null) {
+            out.name("references").jsonValue(new String(cve.references, StandardCharsets.UTF_8));
+        }
+        out.endObject();
+    }
+
+    @Override
+    public CVE read(JsonReader in) throws IOException {
+        CVE cve = new CVE();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "cveId":
+                case "id":
+                    cve.cveId = in.nextString();
+                    break;
+                case "problemType":
+                    cve.problemType = in.nextString();
+                    break;
+                case "descriptions":
+                case "description":
+                    cve.descriptions = CVE.raw(in);
+                    break;
+                case "references":
+                    cve.references = CVE.raw(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
         }
+        in.endObject();
+        return cve;
     }
 }
 
@@ -306,6 +759,9 @@ class Reference {
     public List<String> tags;
     public String url; // required
 
+    Reference() {
+    }
+
     public Reference(Map<String, Object> fromJson) {
         this.name = (String) fromJson.get("name");
         this.refSource = (String) fromJson.get("source");
@@ -318,6 +774,22 @@ class Reference {
             this.tags = List.of();
         }
     }
+
+    /**
+     * Reads a reference of the api, or one stored by earlier versions with refSource.
+     */
+    public Reference(JsonObject fromJson) {
+        this.name = CVE.string(fromJson, "name");
+        this.refSource = fromJson.has("source") ? CVE.string(fromJson, "source") : CVE.string(fromJson, "refSource");
+        this.url = CVE.string(fromJson, "url");
+
+        this.tags = new ArrayList<>();
+        if (fromJson.has("tags") && fromJson.get("tags").isJsonArray()) {
+            for (JsonElement tag : fromJson.getAsJsonArray("tags")) {
+                this.tags.add(tag.getAsString());
+            }
+        }
+    }
 }
 
 class BaseMetric {
@@ -325,65 +797,63 @@ class BaseMetric {
     public String attackVector;            //v3,   v2
     public String authentication;          //      v2
     public String availabilityImpact;      //v3,   v2
-    public Float baseScore;                //v3,   v2
+    public float baseScore;                //v3,   v2
     public String baseSeverity;            //v3,   v2 (severity)
+    public Severity severity;              // baseSeverity, or derived from baseScore if missing
     public String confidentialityImpact;   //v3,   v2
     public String integrityImpact;         //v3,   v2
     public String privilegesRequired;      //v3    (== authentication??)
     public String scope;                   //v3
     public String userInteractionRequired; //v3 (userInteraction) ,   v2
     public String vectorString;            //v3,   v2
-    public Float exploitabilityScore;      //v3,   v2
-    public Float impactScore;              //v3,   v2
+    public float exploitabilityScore;      //v3,   v2
+    public float impactScore;              //v3,   v2
     public MetricVersion version;
 
     public enum MetricVersion {
         V2,
-        V3
-    }
-
-    public void BaseMetric1(Map<String, Object> fromV3Json) {
-        Map<String, Object> cvssV3 = (Map<String, Object>) fromV3Json.get("cvssV3");
-        if (cvssV3 != null) {
-            this.attackComplexity = (String) cvssV3.get("attackComplexity");
-            this.attackVector = (String) cvssV3.get("attackVector");
-            this.availabilityImpact = (String) cvssV3.get("availabilityImpact");
-            this.baseScore = (Float) cvssV3.get("baseScore");
-            this.baseSeverity = (String) cvssV3.get("baseSeverity");
-            this.confidentialityImpact = (String) cvssV3.get("confidentialityImpact");
-            this.integrityImpact = (String) cvssV3.get("integrityImpact");
-            this.privilegesRequired = (String) cvssV3.get("privilegesRequired");
-            this.scope = (String) cvssV3.get("scope");
-            this.userInteractionRequired = (String) cvssV3.get("userInteraction");
-            this.vectorString = (String) cvssV3.get("vectorString");
-        }
-
-        this.exploitabilityScore = (Float) fromV3Json.get("exploitabilityScore");
-        this.impactScore = (Float) fromV3Json.get("impactScore");
-        this.version = MetricVersion.V3;
-    }
-
-    public void BaseMetric2(Map<String, Object> fromV2Json) {
-        Map<String, Object> cvssV2 = (Map<String, Object>) fromV2Json.get("cvssV2");
-        if (cvssV2 != null) {
-            this.attackComplexity = (String) cvssV2.get("accessComplexity");
-            this.attackVector = (String) cvssV2.get("accessVector");
-            this.authentication = (String) cvssV2.get("authentication");
-            this.availabilityImpact = (String) cvssV2.get("availabilityImpact");
-            this.baseScore = (Float) cvssV2.get("baseScore");
-            this.confidentialityImpact = (String) cvssV2.get("confidentialityImpact");
-            this.integrityImpact = (String) cvssV2.get("integrityImpact");
-            this.vectorString = (String) cvssV2.get("vectorString");
-        }
-
-        this.exploitabilityScore = (Float) fromV2Json.get("exploitabilityScore");
-        this.impactScore = (Float) fromV2Json.get("impactScore");
-        //this.obtainAllPrivilege = (Boolean) fromV2Json.get("obtainAllPrivilege");
-        //this.obtainOtherPrivilege = (Boolean) fromV2Json.get("obtainOtherPrivilege");
-        //this.obtainUserPrivilege = (Boolean) fromV2Json.get("obtainUserPrivilege");
-        this.baseSeverity = (String) fromV2Json.get("severity");
-        this.userInteractionRequired = String.valueOf(fromV2Json.get("userInteractionRequired"));
-        this.version = MetricVersion.V2;
+        V30,
+        V31
+    }
+
+    BaseMetric() {
+    }
+
+    /**
+     * @param fromJson one entry of cvssMetricV31, cvssMetricV30 or cvssMetricV2 in the metrics of a cve
+     */
+    public BaseMetric(Map<String, Object> fromJson, MetricVersion version) {
+        this.version = version;
+        Map<String, Object> cvssData = (Map<String, Object>) fromJson.get("cvssData");
+        if (cvssData != null) {
+            this.attackComplexity = (String) cvssData.get(version == MetricVersion.V2 ? "accessComplexity" : "attackComplexity");
+            this.attackVector = (String) cvssData.get(version == MetricVersion.V2 ? "accessVector" : "attackVector");
+            this.authentication = (String) cvssData.get("authentication");
+            this.availabilityImpact = (String) cvssData.get("availabilityImpact");
+            this.baseScore = floatValue(cvssData.get("baseScore"));
+            this.baseSeverity = (String) cvssData.get("baseSeverity");
+            this.confidentialityImpact = (String) cvssData.get("confidentialityImpact");
+            this.integrityImpact = (String) cvssData.get("integrityImpact");
+            this.privilegesRequired = (String) cvssData.get("privilegesRequired");
+            this.scope = (String) cvssData.get("scope");
+            this.userInteractionRequired = (String) cvssData.get("userInteraction");
+            this.vectorString = (String) cvssData.get("vectorString");
+        }
+
+        this.exploitabilityScore = floatValue(fromJson.get("exploitabilityScore"));
+        this.impactScore = floatValue(fromJson.get("impactScore"));
+        if (version == MetricVersion.V2) {
+            // the v2 severity and user interaction are next to cvssData
+            this.baseSeverity = (String) fromJson.get("baseSeverity");
+            if (fromJson.containsKey("userInteractionRequired")) {
+                this.userInteractionRequired = String.valueOf(fromJson.get("userInteractionRequired"));
+            }
+        }
+        this.severity = baseSeverity != null ? Severity.of(baseSeverity) : Severity.fromScore(baseScore);
+    }
+
+    private static float floatValue(Object value) {
+        return value instanceof Number ? ((Number) value).floatValue() : 0;
     }
 }
 
@@ -391,16 +861,113 @@ class Impact {
     public BaseMetric baseMetricV3;
     public BaseMetric baseMetricV2;
 
+    Impact() {
+    }
+
+    /**
+     * @param fromJson metrics of a cve, the primary score of the newest cvss version is used
+     */
     public Impact(Map<String, Object> fromJson) {
-        if (fromJson.containsKey("baseMetricV2")) {
-            Map<String, Object> baseMetricV2Map = (Map<String, Object>) fromJson.get("baseMetricV2");
-            //this.baseMetricV2 = new BaseMetric(baseMetricV2Map);
+        Map<String, Object> baseMetricV3Map = primary((List<Map<String, Object>>) fromJson.get("cvssMetricV31"));
+        if (baseMetricV3Map != null) {
+            this.baseMetricV3 = new BaseMetric(baseMetricV3Map, BaseMetric.MetricVersion.V31);
+        } else {
+            baseMetricV3Map = primary((List<Map<String, Object>>) fromJson.get("cvssMetricV30"));
+            if (baseMetricV3Map != null) {
+                this.baseMetricV3 = new BaseMetric(baseMetricV3Map, BaseMetric.MetricVersion.V30);
+            }
+        }
+
+        Map<String, Object> baseMetricV2Map = primary((List<Map<String, Object>>) fromJson.get("cvssMetricV2"));
+        if (baseMetricV2Map != null) {
+            this.baseMetricV2 = new BaseMetric(baseMetricV2Map, BaseMetric.MetricVersion.V2);
+        }
+    }
+
+    private static Map<String, Object> primary(List<Map<String, Object>> metrics) {
+        if (metrics == null || metrics.isEmpty()) {
+            return null;
+        }
+        for (Map<String, Object> metric : metrics) {
+            if ("Primary".equals(metric.get("type"))) {
+                return metric;
+            }
         }
+        return metrics.get(0);
+    }
+
+    /**
+     * @return the cvss v3 metric, or v2 for cves scored before v3
+     */
+    public BaseMetric baseMetric() {
+        return baseMetricV3 != null ? baseMetricV3 : baseMetricV2;
+    }
+}
+
+enum Severity {
+    none, low, medium, high, critical;
+
+    static Severity of(String severity) {
+        try {
+            return Severity.valueOf(severity.toLowerCase());
+        } catch (IllegalArgumentException e) {
+            return none;
+        }
+    }
 
-        if (fromJson.containsKey("baseMetricV3")) {
-            Map<String, Object> baseMetricV3Map = (Map<String, Object>) fromJson.get("baseMetricV3");
-            // this.baseMetricV3 = new BaseMetric(baseMetricV3Map);
+    /**
+     * @return severity of a cvss v3 base score
+     */
+    static Severity fromScore(float score) {
+        if (score >= 9.0f) {
+            return critical;
+        } else if (score >= 7.0f) {
+            return high;
+        } else if (score >= 4.0f) {
+            return medium;
+        } else if (score > 0.0f) {
+            return low;
         }
+        return none;
+    }
+}
+
+/**
+ * Highest score and number of cves by severity of the vulnerabilities of a cpe, cves without a score are
+ * counted separately.
+ */
+class VulnerabilitySummary {
+    public float maxScore = 0;
+    public Severity maxSeverity = Severity.none;
+    public int[] counts = new int[Severity.values().length];
+    public int unscored = 0;
+
+    static VulnerabilitySummary of(List<CVEData> vulnerabilities) {
+        VulnerabilitySummary summary = new VulnerabilitySummary();
+        for (CVEData cveData : vulnerabilities) {
+            BaseMetric metric = cveData.baseMetric();
+            if (metric == null) {
+                summary.unscored++;
+                continue;
+            }
+            summary.counts[metric.severity.ordinal()]++;
+            summary.maxScore = Math.max(summary.maxScore, metric.baseScore);
+            if (metric.severity.compareTo(summary.maxSeverity) > 0) {
+                summary.maxSeverity = metric.severity;
+            }
+        }
+        return summary;
+    }
+
+    public int count(Severity severity) {
+        return counts[severity.ordinal()];
+    }
+
+    /**
+     * @return whether every cve is scored below the severity, unscored cves are never skipped
+     */
+    public boolean below(Severity minSeverity) {
+        return unscored == 0 && maxSeverity.compareTo(minSeverity) < 0;
     }
 }
 
@@ -414,8 +981,21 @@ class CPEMatch {
     public String exactVersion;
     public boolean vulnerable; // required
 
+    CPEMatch() {
+    }
+
     public CPEMatch(Map<String, Object> fromJson) {
-        String cpe23Uri = (String) fromJson.get("criteria");
+        setCriteria((String) fromJson.get("criteria"));
+
+        this.vulnerable = (boolean) fromJson.getOrDefault("vulnerable", false);
+
+        this.versionEndExcluding = (String) fromJson.get("versionEndExcluding");
+        this.versionEndIncluding = (String) fromJson.get("versionEndIncluding");
+        this.versionStartIncluding = (String) fromJson.get("versionStartIncluding");
+        this.versionStartExcluding = (String) fromJson.get("versionStartExcluding");
+    }
+
+    void setCriteria(String cpe23Uri) {
         if (cpe23Uri != null && !cpe23Uri.isEmpty()) {
             this.originalcpeString = cpe23Uri;
             String[] components = cpe23Uri.split(":");
@@ -432,13 +1012,6 @@ class CPEMatch {
             this.cpeString = "Not found"; // should never happen
             this.originalcpeString = "Not found"; // should never happen
         }
-
-        this.vulnerable = (boolean) fromJson.getOrDefault("vulnerable", false);
-
-        this.versionEndExcluding = (String) fromJson.get("versionEndExcluding");
-        this.versionEndIncluding = (String) fromJson.get("versionEndIncluding");
-        this.versionStartIncluding = (String) fromJson.get("versionStartIncluding");
-        this.versionStartExcluding = (String) fromJson.get("versionStartExcluding");
     }
 
     public String getVersionString() {
@@ -468,6 +1041,12 @@ class Node {
     private List<CPEMatch> cpeMatch = new ArrayList<>();
     private String operatorString;
 
+    Node(List<Node> children, List<CPEMatch> cpeMatch, String operatorString) {
+        this.children = children;
+        this.cpeMatch = cpeMatch;
+        this.operatorString = operatorString;
+    }
+
     public Node(Map<String, Object> fromJson) {
         List<Map<String,Object>> temp = (List<Map<String,Object>>) fromJson.get("nodes");
         for(Map<String,Object> el : temp){
@@ -508,6 +1087,9 @@ class Node {
 class Configuration {
     public List<Node> nodes = new ArrayList<>();
 
+    Configuration() {
+    }
+
     public Configuration(List<Map<String, Object>> fromJson) {
         for (Map<String, Object> nodeJson : fromJson) {
             nodes.add(new Node(nodeJson));
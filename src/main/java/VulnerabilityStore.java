@@ -0,0 +1,587 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Vulnerabilities found per cpe, stored so that the cost of opening the store does not grow with it.
+ * Every cve is stored once by its id, the entry of a cpe holds only the ids of its cves. Entries are appended
+ * as json to the data file, the entries index maps the cpe to "offset:length:lastUpdated" of its latest entry
+ * and the cves index maps the cve id to "offset:length:lastModified". Only the entries asked for are read and
+ * decoded, only the changed ones are written. A cve is written again only when its lastModified changed.
+ * <p>
+ * Saving holds a lock on store.lock, so processes sharing the home folder save one after another, each on top
+ * of the indexes saved last. Every save writes indexes under new names and compacting writes a new data file,
+ * store.json names the files in use and is replaced atomically. Until then the files it named are left as
+ * they were, an interrupted save leaves the store as it was saved before. Once replaced entries take more
+ * than half of the data file it is compacted. A damaged entry is treated as missing, it is queried again.
+ */
+public class VulnerabilityStore implements AutoCloseable {
+    private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+
+    private final Path folder;
+    private final Path manifestPath;
+    private final Path lockPath;
+    private final Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new UnixDateAdapter()).create();
+    private final Map<String, VulnerabilityData> loaded = new HashMap<>();
+    private final Map<String, CVEData> loadedCVEs = new HashMap<>();
+    private final Map<String, StoredVulnerabilities> dirty = new LinkedHashMap<>();
+    private final Map<String, CVEData> dirtyCVEs = new LinkedHashMap<>();
+    private SortedIndex index;
+    private SortedIndex cveIndex;
+    private FileChannel data;
+    private Date sweptAt; // sweep for modified cves not saved yet
+
+    public VulnerabilityStore(Path folder) {
+        this.folder = folder;
+        this.manifestPath = folder.resolve("store.json");
+        this.lockPath = folder.resolve("store.lock");
+    }
+
+    public boolean exists() {
+        return index != null || Files.exists(manifestPath);
+    }
+
+    /**
+     * @return the stored entry of the cpe, or null if there is none
+     */
+    public synchronized VulnerabilityData get(String cpe) {
+        VulnerabilityData vulnerabilityData = loaded.get(cpe);
+        if (vulnerabilityData != null || !exists()) {
+            return vulnerabilityData;
+        }
+
+        try {
+            openIndexes();
+            String location = index.get(cpe);
+            if (location == null) {
+                return null;
+            }
+            StoredVulnerabilities stored = gson.fromJson(new String(read(location), StandardCharsets.UTF_8), StoredVulnerabilities.class);
+            if (stored == null || stored.lastUpdated == null || stored.cveIds == null) {
+                return null;
+            }
+
+            List<CVEData> cveList = new ArrayList<>(stored.cveIds.size());
+            for (String cveId : stored.cveIds) {
+                CVEData cveData = getCVE(cveId);
+                if (cveData == null) {
+                    LoggerHelper.log(LogLevel.DEBUG, "[i] Stored vulnerabilities of " + cpe + " miss " + cveId);
+                    return null;
+                }
+                cveList.add(cveData);
+            }
+            vulnerabilityData = new VulnerabilityData(cveList);
+            vulnerabilityData.lastUpdated = stored.lastUpdated;
+            loaded.put(cpe, vulnerabilityData);
+            return vulnerabilityData;
+        } catch (IOException | JsonParseException | NumberFormatException | IndexOutOfBoundsException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Could not read stored vulnerabilities of " + cpe + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private CVEData getCVE(String cveId) throws IOException {
+        CVEData cveData = loadedCVEs.get(cveId);
+        if (cveData == null) {
+            String location = cveIndex.get(cveId);
+            if (location != null) {
+                cveData = gson.fromJson(new String(read(location), StandardCharsets.UTF_8), CVEData.class);
+                loadedCVEs.put(cveId, cveData);
+            }
+        }
+        return cveData;
+    }
+
+    /**
+     * Stores the cves of the cpe. A cve already stored by another cpe is shared with it, or replaced if the
+     * new one has a different lastModified.
+     */
+    public synchronized void put(String cpe, VulnerabilityData vulnerabilityData) {
+        List<String> cveIds = new ArrayList<>();
+        List<CVEData> cveList = new ArrayList<>();
+        for (CVEData cveData : vulnerabilityData.vulnerabilities) {
+            if (cveData.cve == null || cveData.cve.cveId == null) {
+                continue; // every cve of the NVD api has an id
+            }
+            String cveId = cveData.cve.cveId;
+            CVEData existing = loadedCVEs.get(cveId);
+            if (existing != null && Objects.equals(existing.lastModifiedDate, cveData.lastModifiedDate)) {
+                cveData = existing;
+            } else if (existing != null || !Objects.equals(storedLastModified(cveId), cveData.lastModifiedDate)) {
+                dirtyCVEs.put(cveId, cveData);
+                loadedCVEs.put(cveId, cveData);
+            } else {
+                loadedCVEs.put(cveId, cveData);
+            }
+            cveIds.add(cveId);
+            cveList.add(cveData);
+        }
+
+        VulnerabilityData stored = new VulnerabilityData(cveList);
+        stored.lastUpdated = vulnerabilityData.lastUpdated;
+        loaded.put(cpe, stored);
+        dirty.put(cpe, new StoredVulnerabilities(stored.lastUpdated, cveIds, stored.summary));
+    }
+
+    /**
+     * @return the stored entry of the cpe without its cves, or null if there is none. Its summary is null for
+     * entries stored by earlier versions.
+     */
+    public synchronized StoredVulnerabilities peek(String cpe) {
+        StoredVulnerabilities stored = dirty.get(cpe);
+        if (stored != null) {
+            return stored;
+        }
+        VulnerabilityData vulnerabilityData = loaded.get(cpe);
+        if (vulnerabilityData != null) {
+            return new StoredVulnerabilities(vulnerabilityData.lastUpdated, null, vulnerabilityData.summary);
+        }
+        if (!exists()) {
+            return null;
+        }
+
+        try {
+            openIndexes();
+            String location = index.get(cpe);
+            if (location != null) {
+                stored = gson.fromJson(new String(read(location), StandardCharsets.UTF_8), StoredVulnerabilities.class);
+                return stored != null && stored.lastUpdated != null ? stored : null;
+            }
+        } catch (IOException | JsonParseException | NumberFormatException | IndexOutOfBoundsException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Could not read stored vulnerabilities of " + cpe + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return lastModified of the stored cve, an empty string if it is not stored
+     */
+    private String storedLastModified(String cveId) {
+        try {
+            if (exists()) {
+                openIndexes();
+                String location = cveIndex.get(cveId);
+                if (location != null) {
+                    String[] components = location.split(":", 3);
+                    return components.length == 3 && !components[2].isEmpty() ? components[2] : null;
+                }
+            }
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Could not read cve index: " + e.getMessage());
+        }
+        return "";
+    }
+
+    public synchronized boolean isChanged() {
+        return !dirty.isEmpty() || sweptAt != null;
+    }
+
+    /**
+     * @return when the stored cpes were last brought up to date with the modified cves, null if never
+     */
+    public synchronized Date lastSweep() {
+        if (sweptAt != null) {
+            return sweptAt;
+        }
+        try {
+            StoreManifest current = readManifest();
+            return current != null && current.lastSweep != null ? new Date(current.lastSweep) : null;
+        } catch (IOException e) {
+            LoggerHelper.log(LogLevel.DEBUG, "[i] Could not read the time of the last sweep: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void setLastSweep(Date lastSweep) {
+        this.sweptAt = lastSweep;
+    }
+
+    /**
+     * @return number of stored cpes, including the ones not saved yet
+     */
+    public synchronized int size() throws IOException {
+        int size = 0;
+        if (exists()) {
+            openIndexes();
+            size = index.size();
+            for (String cpe : dirty.keySet()) {
+                if (index.get(cpe) == null) {
+                    size++;
+                }
+            }
+        } else {
+            size = dirty.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the time every stored cpe was last updated, read from the index without decoding the entries
+     */
+    public synchronized Map<String, Date> updateTimes() throws IOException {
+        Map<String, Date> updateTimes = new HashMap<>();
+        if (exists()) {
+            openIndexes();
+            index.forEach((cpe, location) -> {
+                String[] components = location.split(":", 3);
+                if (components.length == 3) {
+                    try {
+                        updateTimes.put(cpe, new Date(Long.parseLong(components[2])));
+                    } catch (NumberFormatException e) {
+                        LoggerHelper.log(LogLevel.DEBUG, "[i] No update time stored for " + cpe);
+                    }
+                }
+            });
+        }
+        for (Map.Entry<String, StoredVulnerabilities> entry : dirty.entrySet()) {
+            updateTimes.put(entry.getKey(), entry.getValue().lastUpdated);
+        }
+        return updateTimes;
+    }
+
+    /**
+     * @return number of distinct stored cves, including the ones not saved yet
+     */
+    public synchronized int cveCount() throws IOException {
+        int count = 0;
+        if (exists()) {
+            openIndexes();
+            count = cveIndex.size();
+            for (String cveId : dirtyCVEs.keySet()) {
+                if (cveIndex.get(cveId) == null) {
+                    count++;
+                }
+            }
+        } else {
+            count = dirtyCVEs.size();
+        }
+        return count;
+    }
+
+    /**
+     * Imports the entries of the vulnerabilities.json written by earlier versions.
+     */
+    public synchronized void importDictionary(Path jsonFile) throws IOException {
+        VulnerabilityDictionary dictionary;
+        try (Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8)) {
+            dictionary = gson.fromJson(reader, VulnerabilityDictionary.class);
+        } catch (JsonParseException | NumberFormatException e) {
+            throw new IOException("Could not read " + jsonFile + ": " + e.getMessage(), e);
+        }
+        if (dictionary != null && dictionary.dictionary != null) {
+            for (Map.Entry<String, VulnerabilityData> entry : dictionary.dictionary.entrySet()) {
+                VulnerabilityData vulnerabilityData = entry.getValue();
+                if (vulnerabilityData != null && vulnerabilityData.lastUpdated != null && vulnerabilityData.vulnerabilities != null) {
+                    put(entry.getKey(), vulnerabilityData);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the changed entries to the data file and writes the indexes, holding the lock of the store.
+     */
+    public synchronized void save() throws IOException {
+        if (!isChanged()) {
+            return;
+        }
+        Files.createDirectories(folder);
+
+        // file locks are held per process, stores of the same process take turns here
+        synchronized (VulnerabilityStore.class) {
+            try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    saveLocked();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void saveLocked() throws IOException {
+        // read the indexes again, another process may have saved since they were opened
+        closeFiles();
+        StoreManifest current = readManifest();
+        Map<String, String> entries = new HashMap<>();
+        Map<String, String> cveEntries = new HashMap<>();
+        if (current != null) {
+            openIndexes();
+            index.forEach(entries::put);
+            cveIndex.forEach(cveEntries::put);
+            closeFiles();
+        }
+
+        int generation = current != null ? current.generation + 1 : 1;
+        String dataName = current != null ? current.data : "entries-" + generation + ".data";
+        Path dataPath = folder.resolve(dataName);
+        try (FileChannel output = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = output.size();
+            for (Map.Entry<String, CVEData> entry : dirtyCVEs.entrySet()) {
+                String lastModified = entry.getValue().lastModifiedDate != null ? entry.getValue().lastModifiedDate : "";
+                offset = append(output, offset, entry.getValue(), entry.getKey(), lastModified, cveEntries);
+            }
+            for (Map.Entry<String, StoredVulnerabilities> entry : dirty.entrySet()) {
+                offset = append(output, offset, entry.getValue(), entry.getKey(), String.valueOf(entry.getValue().lastUpdated.getTime()), entries);
+            }
+        }
+
+        long liveSize = liveSize(entries) + liveSize(cveEntries);
+        long dataSize = Files.size(dataPath);
+        if (current != null && dataSize > COMPACT_MIN_SIZE && dataSize > 2 * liveSize) {
+            dataName = "entries-" + generation + ".data";
+            compact(dataPath, folder.resolve(dataName), entries, cveEntries);
+        }
+
+        StoreManifest next = new StoreManifest(generation, dataName, "entries-" + generation + ".index", "cves-" + generation + ".index");
+        next.lastSweep = sweptAt != null ? Long.valueOf(sweptAt.getTime()) : current != null ? current.lastSweep : null;
+        SortedIndex.write(folder.resolve(next.index), entries);
+        SortedIndex.write(folder.resolve(next.cveIndex), cveEntries);
+        writeManifest(next);
+        if (current != null) {
+            deleteReplaced(current, next);
+        }
+        LoggerHelper.log(LogLevel.DEBUG, "[i] Saved " + dirty.size() + " vulnerability entries and " + dirtyCVEs.size()
+                + " cves, " + entries.size() + " cpes and " + cveEntries.size() + " cves stored");
+        dirty.clear();
+        dirtyCVEs.clear();
+        sweptAt = null;
+    }
+
+    private long append(FileChannel output, long offset, Object entry, String key, String stamp, Map<String, String> locations) throws IOException {
+        byte[] json = gson.toJson(entry).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(json);
+        while (buffer.hasRemaining()) {
+            output.write(buffer, offset + buffer.position());
+        }
+        locations.put(key, offset + ":" + json.length + ":" + stamp);
+        return offset + json.length;
+    }
+
+    private static long liveSize(Map<String, String> locations) {
+        long liveSize = 0;
+        for (String location : locations.values()) {
+            liveSize += Long.parseLong(location.split(":", 3)[1]);
+        }
+        return liveSize;
+    }
+
+    /**
+     * @return the files of the store, null if it has not been saved yet
+     */
+    private StoreManifest readManifest() throws IOException {
+        if (Files.exists(manifestPath)) {
+            try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+                StoreManifest stored = gson.fromJson(reader, StoreManifest.class);
+                if (stored == null || stored.data == null || stored.index == null) {
+                    throw new IOException("Incomplete " + manifestPath);
+                }
+                // saved before cves were stored by id, the store is filled again from the api
+                return stored.cveIndex != null ? stored : null;
+            } catch (JsonParseException e) {
+                throw new IOException("Could not read " + manifestPath + ": " + e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces store.json at once, readers see either the files saved before or the new ones.
+     */
+    private void writeManifest(StoreManifest next) throws IOException {
+        Path temp = Files.createTempFile(folder, "store", ".json.tmp");
+        try {
+            Files.writeString(temp, gson.toJson(next), StandardCharsets.UTF_8);
+            Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void deleteReplaced(StoreManifest current, StoreManifest next) {
+        List<String> replaced = new ArrayList<>(List.of(current.index, current.cveIndex));
+        if (!current.data.equals(next.data)) {
+            replaced.add(current.data);
+        }
+        for (String name : replaced) {
+            try {
+                Files.deleteIfExists(folder.resolve(name));
+            } catch (IOException e) {
+                LoggerHelper.log(LogLevel.DEBUG, "[i] Could not delete replaced " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copies the entries still in the indexes to a new data file, dropping the replaced ones. The old data file
+     * is left in place for the indexes still naming it.
+     */
+    @SafeVarargs
+    private void compact(Path dataPath, Path compactedPath, Map<String, String>... indexes) throws IOException {
+        LoggerHelper.log(LogLevel.DEBUG, "[*] Compacting vulnerability store");
+        Path temp = Files.createTempFile(folder, "entries", ".data.tmp");
+        try {
+            try (FileChannel input = FileChannel.open(dataPath, StandardOpenOption.READ);
+                 FileChannel output = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long offset = 0;
+                for (Map<String, String> locations : indexes) {
+                    for (Map.Entry<String, String> entry : locations.entrySet()) {
+                        String[] components = entry.getValue().split(":", 3);
+                        long from = Long.parseLong(components[0]);
+                        long length = Long.parseLong(components[1]);
+
+                        long copied = 0;
+                        while (copied < length) {
+                            copied += input.transferTo(from + copied, length - copied, output);
+                        }
+                        entry.setValue(offset + ":" + length + (components.length == 3 ? ":" + components[2] : ""));
+                        offset += length;
+                    }
+                }
+            }
+            Files.move(temp, compactedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void openIndexes() throws IOException {
+        if (index != null) {
+            return;
+        }
+        // the files can be replaced by another process between reading store.json and opening them
+        for (int attempt = 0; ; attempt++) {
+            StoreManifest current = readManifest();
+            if (current == null) {
+                throw new NoSuchFileException(manifestPath.toString());
+            }
+            try {
+                index = SortedIndex.open(folder.resolve(current.index));
+                cveIndex = SortedIndex.open(folder.resolve(current.cveIndex));
+                data = FileChannel.open(folder.resolve(current.data), StandardOpenOption.READ);
+                return;
+            } catch (NoSuchFileException e) {
+                closeFiles();
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private byte[] read(String location) throws IOException {
+        String[] components = location.split(":", 3);
+        long offset = Long.parseLong(components[0]);
+        int length = Integer.parseInt(components[1]);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Vulnerability store data ends before offset " + offset);
+            }
+        }
+        return buffer.array();
+    }
+
+    private void closeFiles() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (cveIndex != null) {
+            cveIndex.close();
+            cveIndex = null;
+        }
+        if (data != null) {
+            data.close();
+            data = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeFiles();
+    }
+}
+
+/**
+ * Names of the files of a saved store, kept in store.json.
+ */
+class StoreManifest {
+    public int generation;
+    public String data;
+    public String index;
+    public String cveIndex;
+    public Long lastSweep; // unix time in ms of the last sweep for modified cves
+
+    StoreManifest(int generation, String data, String index, String cveIndex) {
+        this.generation = generation;
+        this.data = data;
+        this.index = index;
+        this.cveIndex = cveIndex;
+    }
+}
+
+/**
+ * Stored entry of a cpe, the cves are stored separately by id. The summary of their severities is stored with
+ * the entry, so that a cpe can be skipped by severity without reading its cves.
+ */
+class StoredVulnerabilities {
+    public Date lastUpdated;
+    public List<String> cveIds;
+    public VulnerabilitySummary summary;
+
+    StoredVulnerabilities(Date lastUpdated, List<String> cveIds, VulnerabilitySummary summary) {
+        this.lastUpdated = lastUpdated;
+        this.cveIds = cveIds;
+        this.summary = summary;
+    }
+}
+
+/**
+ * Dates as unix timestamps in seconds, the format of vulnerabilities.json.
+ */
+class UnixDateAdapter extends TypeAdapter<Date> {
+    @Override
+    public void write(JsonWriter out, Date value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(value.getTime() / 1000.0);
+        }
+    }
+
+    @Override
+    public Date read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        double unixTimestamp = in.peek() == JsonToken.STRING ? Double.parseDouble(in.nextString()) : in.nextDouble();
+        return new Date(Math.round(unixTimestamp * 1000));
+    }
+}
@@ -3,8 +3,10 @@ import org.javatuples.Tuple;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 
@@ -25,12 +27,13 @@ class Analyse implements Runnable {
     String path = System.getProperty("user.dir");
 
     enum Action {
-        all, dependencies, findcpe, querycve, sourceanalysis, translate, allcpe, printcpe, alllibraries
+        all, dependencies, findcpe, querycve, sourceanalysis, translate, allcpe, printcpe, alllibraries, mirror
     }
 
     @CommandLine.Option(names = {"-a", "--action"}, description = "Action to take. Dependencies detects " +
             "the dependencies declared. Findcpe finds the corresponding cpe for each library, querycve " +
-            "queries cve-s from NVD database.")
+            "queries cve-s from NVD database. Mirror builds the local NVD mirror from the json feeds in the " +
+            "folder given as specific value.")
     Action action = Action.all;
 
     enum Platform {
@@ -62,6 +65,14 @@ class Analyse implements Runnable {
             "dependency name in file.")
     boolean findVulnerableDependecyNameUsage = false;
 
+    @CommandLine.Option(names = {"-o", "--offline"}, description = "Query vulnerabilities from " +
+            "the local NVD mirror instead of the NVD api.")
+    boolean offline = false;
+
+    @CommandLine.Option(names = {"--minSeverity"}, description = "Report only vulnerabilities of this cvss severity " +
+            "or higher, vulnerabilities without a score are always reported. Options: low, medium, high and critical.")
+    Severity minSeverity = null;
+
     enum Level {
         debug, info, error, none
     }
@@ -74,11 +85,15 @@ class Analyse implements Runnable {
     public void run() {
         try {
             Settings settings = new Settings();
+            if (offline) {
+                settings.nvdMirror = true;
+            }
             switch (action){
                 case all:
                     DependencyChecker allCaseAnalyser = new DependencyChecker(settings);
                     allCaseAnalyser.cpeOnlyFromFile = cpeOnlyFromFile;
                     allCaseAnalyser.onlyDirectDependencies = onlyDirectDependencies;
+                    allCaseAnalyser.minSeverity = minSeverity;
 
                     try {
                         Map<Library, CVEData> vulnerableVersionsUsed = allCaseAnalyser.analyseFolder(path);
@@ -90,8 +105,9 @@ class Analyse implements Runnable {
                             String module = library.module != null ? " (" + library.module + ")" : "";
 
                             LoggerHelper.log(LogLevel.INFO, "Library: " + library.name + " - " + library.versionString + subTarget + module);
-                            if (cveData.cve != null && cveData.cve.description != null) {
-                                LoggerHelper.log(LogLevel.INFO,"  --  description: " + cveData.cve.description);
+                            String description = cveData.cve != null ? cveData.cve.description() : null;
+                            if (description != null) {
+                                LoggerHelper.log(LogLevel.INFO,"  --  description: " + description);
                             }
                             if (this.findVulnerableDependecyNameUsage){
                                 DependencyAnalyser.searchInSwiftFiles(this.path, entry.getKey().module);
@@ -108,6 +124,7 @@ class Analyse implements Runnable {
                     DependencyChecker sourceAnalyserCase = new DependencyChecker(settings);
                     sourceAnalyserCase.onlyDirectDependencies = onlyDirectDependencies;
                     sourceAnalyserCase.cpeOnlyFromFile = cpeOnlyFromFile;
+                    sourceAnalyserCase.minSeverity = minSeverity;
 
                     try {
                         Map<Library, CVEData> vurnableVersionUsed = sourceAnalyserCase.analyseFolder(path);
@@ -188,8 +205,9 @@ class Analyse implements Runnable {
                         List<CVEData> cveList = analyser.queryVulnerabilitiesFor(specificValue);
                         LoggerHelper.log(LogLevel.INFO, "Found vulnerabilities: " + cveList);
                         for (CVEData cve : cveList) {
-                            if (cve.cve != null && cve.cve.description != null) {
-                                LoggerHelper.log(LogLevel.INFO, "Vulnerability: " + cve.cve.description);
+                            String description = cve.cve != null ? cve.cve.description() : null;
+                            if (description != null) {
+                                LoggerHelper.log(LogLevel.INFO, "Vulnerability: " + description);
                                 if (cve.configuration != null) {
                                     List<CPEMatch> affectedVersions = cve.configuration.getAffectedVersions();
                                     for (CPEMatch version : affectedVersions) {
@@ -215,6 +233,7 @@ class Analyse implements Runnable {
                     } else {
                         LoggerHelper.log(LogLevel.INFO, "[!] Currently only analysis with specific value supported.");
                     }
+                    analyser.close();
                     break;
 
                 case translate:
@@ -250,6 +269,7 @@ class Analyse implements Runnable {
                 case alllibraries:
                     DependencyChecker allLibrariesAnalyser = new DependencyChecker(settings);
                     allLibrariesAnalyser.cpeOnlyFromFile = cpeOnlyFromFile;
+                    allLibrariesAnalyser.minSeverity = minSeverity;
 
                     Map<String, Pair<String, List<CVEData>>> results;
 
@@ -264,6 +284,19 @@ class Analyse implements Runnable {
                     }
                     break;
 
+                case mirror:
+                    if (specificValue != null) {
+                        try {
+                            NVDMirror nvdMirror = NVDMirror.forSettings(settings);
+                            nvdMirror.build(Paths.get(specificValue), Runtime.getRuntime().availableProcessors());
+                        } catch (IOException e) {
+                            LoggerHelper.log(LogLevel.ERROR, "[!] Building NVD mirror failed: " + e.getMessage());
+                        }
+                    } else {
+                        LoggerHelper.log(LogLevel.ERROR, "[!] Specify the folder with the NVD json feeds as specific value.");
+                    }
+                    break;
+
                 case printcpe:
                     CPEFinder printCpeAnalyser = new CPEFinder(settings);
 
@@ -282,6 +315,7 @@ class Analyse implements Runnable {
                     break;
 
             }
+            LoggerHelper.log(LogLevel.DEBUG, "[i] " + HttpTransport.shared().statistics());
         } catch (MalformedURLException | URISyntaxException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,77 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPEApiIngestTest {
+    private static final Path dictionary = Paths.get(System.getProperty("user.dir"), "src/test/java/TestFiles/CPEDictionaryTest/official-cpe-dictionary_v2.3.xml");
+    private static final Path pages = Paths.get(System.getProperty("user.dir"), "src/test/java/TestFiles/NVDCPEApiTest");
+
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+
+    private HttpServer startServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cpes", exchange -> {
+            String query = exchange.getRequestURI().getRawQuery();
+            queries.add(query);
+            byte[] page = Files.readAllBytes(pages.resolve(query.endsWith("startIndex=0") ? "page-0.json" : "page-1.json"));
+            exchange.sendResponseHeaders(200, page.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(page);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void testIngestModifiedCPEs() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        Files.copy(dictionary, home.resolve("official-cpe-dictionary_v2.3.xml"));
+        HttpServer server = startServer();
+        try {
+            Settings settings = new Settings();
+            settings.homeFolder = home.toUri().toURL();
+            settings.cpeApiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/cpes";
+            CPEFinder cpeFinder = new CPEFinder(settings);
+            assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+            assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("grpc/grpc-swift"));
+            assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("gRPC-Swift"));
+            cpeFinder.cpeDictionary.dictionary.put("legacy/widget", new CPE("cpe:2.3:a:old:widget:*:*:*:*:*:*:*:*"));
+
+            Date from = Date.from(Instant.parse("2024-02-01T00:00:00Z"));
+            Date to = Date.from(Instant.parse("2024-03-01T00:00:00Z"));
+            assertTrue(cpeFinder.ingestModifiedCPEs(from, to));
+
+            assertEquals(2, queries.size());
+            assertTrue(queries.get(0).startsWith("lastModStartDate=2024-02-01T00:00:00.000%2B00:00&lastModEndDate=2024-03-01T00:00:00.000%2B00:00"));
+            assertTrue(queries.get(1).endsWith("startIndex=2"));
+
+            // cached value and index are both updated
+            assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:swift:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+            assertEquals("cpe:2.3:a:apple:swift-nio:*:*:*:*:*:swift:*:*", cpeFinder.findCPEForLibrary("apple/swift-nio"));
+
+            // deprecated cpes without a replacement are gone from the cache, the index and the products
+            assertNull(cpeFinder.findCPEForLibrary("grpc/grpc-swift"));
+            assertNull(cpeFinder.findCPEForLibrary("gRPC-Swift"));
+            assertNull(cpeFinder.findCPEForLibrary("old/widget"));
+            // the others point to the cpe that replaces them
+            assertEquals("cpe:2.3:a:new:widget:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("legacy/widget"));
+            cpeFinder.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPEFeedDownloaderTest {
+    private static final Path dictionary = Paths.get(System.getProperty("user.dir"), "src/test/java/TestFiles/CPEDictionaryTest/official-cpe-dictionary_v2.3.xml");
+    private String etag = "\"feed-1\"";
+
+    private final List<String> requests = new ArrayList<>();
+    private boolean dropConnection = false;
+
+    private HttpServer startServer(byte[] feed) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed.xml.gz", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            requests.add(range != null ? range : ifNoneMatch != null ? "If-None-Match " + ifNoneMatch : "full");
+
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (etag.equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else if (range != null && etag.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (feed.length - 1) + "/" + feed.length);
+                exchange.sendResponseHeaders(206, feed.length - start);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(feed, start, feed.length - start);
+                }
+            } else if (dropConnection) {
+                dropConnection = false;
+                exchange.sendResponseHeaders(200, feed.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(feed, 0, feed.length / 2);
+                body.flush();
+                exchange.getHttpContext().getServer().stop(0);
+            } else {
+                exchange.sendResponseHeaders(200, feed.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(feed);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private CPEFinder finder(Path home, HttpServer server) throws Exception {
+        Settings settings = new Settings();
+        settings.homeFolder = home.toUri().toURL();
+        settings.cpeFeedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/feed.xml.gz";
+        CPEFinder cpeFinder = new CPEFinder(settings);
+        cpeFinder.cpeOnlyFromFile = false;
+        return cpeFinder;
+    }
+
+    @Test
+    public void testConditionalDownload() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        HttpServer server = startServer(gzip(Files.readAllBytes(dictionary)));
+        try {
+            CPEFinder cpeFinder = finder(home, server);
+            assertTrue(Files.exists(home.resolve("official-cpe-dictionary_v2.3.xml")));
+            assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("grpc/grpc-swift"));
+
+            assertEquals(CPEFeedDownloader.Result.NOT_MODIFIED, cpeFinder.updateCPEDataFile());
+            assertEquals(List.of("full", "If-None-Match " + etag), requests);
+            assertTrue(Files.exists(home.resolve("official-cpe-dictionary_v2.3.xml")));
+            cpeFinder.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testResumeKeepsOldDictionary() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        Files.writeString(home.resolve("official-cpe-dictionary_v2.3.xml"), "old");
+        byte[] feed = gzip(Files.readAllBytes(dictionary));
+
+        HttpServer server = startServer(feed);
+        dropConnection = true;
+        CPEFinder cpeFinder = finder(home, server);
+        assertEquals(CPEFeedDownloader.Result.FAILED, cpeFinder.updateCPEDataFile());
+        assertEquals("old", Files.readString(home.resolve("official-cpe-dictionary_v2.3.xml")));
+        assertTrue(Files.exists(home.resolve("official-cpe-dictionary_v2.3.xml.gz.part")));
+
+        server = startServer(feed);
+        try {
+            cpeFinder = finder(home, server);
+            assertEquals(CPEFeedDownloader.Result.UPDATED, cpeFinder.updateCPEDataFile());
+            assertEquals(List.of("full", "bytes=" + feed.length / 2 + "-"), requests);
+            assertEquals(Files.readString(dictionary), Files.readString(home.resolve("official-cpe-dictionary_v2.3.xml")));
+            assertFalse(Files.exists(home.resolve("official-cpe-dictionary_v2.3.xml.gz.part")));
+            assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+            cpeFinder.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailedUpdateIsRetried() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        HttpServer server = startServer(gzip(Files.readAllBytes(dictionary)));
+        try {
+            finder(home, server).close();
+
+            Settings settings = new Settings();
+            settings.homeFolder = home.toUri().toURL();
+            settings.cpeUpdateMode = CPEUpdateMode.feed;
+            settings.cpeFeedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/missing.xml.gz";
+            CPEFinder cpeFinder = new CPEFinder(settings);
+            Date lastUpdated = new Date(0);
+            cpeFinder.cpeDictionary.lastUpdated = lastUpdated;
+            cpeFinder.update();
+            assertSame(lastUpdated, cpeFinder.cpeDictionary.lastUpdated);
+            assertTrue(cpeFinder.shouldUpdate());
+
+            settings.cpeFeedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/feed.xml.gz";
+            cpeFinder.update();
+            assertTrue(cpeFinder.cpeDictionary.lastUpdated.after(lastUpdated));
+            assertFalse(cpeFinder.shouldUpdate());
+            cpeFinder.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testInstallGzippedFeed() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        Path cpePath = home.resolve("official-cpe-dictionary_v2.3.xml");
+        byte[] feed = gzip(Files.readAllBytes(dictionary));
+        HttpServer server = startServer(feed);
+        try {
+            CPEFinder cpeFinder = finder(home, server);
+            assertEquals(Files.readString(dictionary), Files.readString(cpePath));
+            assertNotNull(cpeFinder.cpeDictionary.dictionaryChanged);
+            assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+            assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("gRPC-Swift"));
+            assertNull(cpeFinder.findCPEForLibrary("acme/widget"));
+            try (Stream<Path> files = Files.list(home)) {
+                assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+            }
+            cpeFinder.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testTruncatedFeedKeepsOldDictionary() throws Exception {
+        Path home = Files.createTempDirectory("dependency-checker");
+        Path cpePath = home.resolve("official-cpe-dictionary_v2.3.xml");
+        byte[] feed = gzip(Files.readAllBytes(dictionary));
+        HttpServer server = startServer(feed);
+        CPEFinder cpeFinder = finder(home, server);
+        cpeFinder.close();
+        server.stop(0);
+        byte[] installed = Files.readAllBytes(cpePath);
+
+        // without the gzip trailer the xml is complete, and cut in the middle of the deflate stream
+        for (int length : new int[]{feed.length - 4, feed.length / 2}) {
+            etag = "\"feed-" + length + "\"";
+            server = startServer(Arrays.copyOf(feed, length));
+            try {
+                cpeFinder = finder(home, server);
+                assertEquals(CPEFeedDownloader.Result.FAILED, cpeFinder.updateCPEDataFile());
+                assertArrayEquals(installed, Files.readAllBytes(cpePath));
+                // everything was received, there is nothing to resume
+                assertFalse(Files.exists(home.resolve("official-cpe-dictionary_v2.3.xml.gz.part")));
+                try (Stream<Path> files = Files.list(home)) {
+                    assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+                }
+                assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+                cpeFinder.close();
+            } finally {
+                server.stop(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPEFinderTest {
+    private static final Path dictionary = Paths.get(System.getProperty("user.dir"), "src/test/java/TestFiles/CPEDictionaryTest/official-cpe-dictionary_v2.3.xml");
+
+    private Settings settingsWithDictionary() throws IOException {
+        Path home = Files.createTempDirectory("dependency-checker");
+        Files.copy(dictionary, home.resolve("official-cpe-dictionary_v2.3.xml"));
+        Settings settings = new Settings();
+        settings.homeFolder = home.toUri().toURL();
+        return settings;
+    }
+
+    // items share their github name with every 40th item and differ in length, so that ranges end at different places
+    private Settings settingsWithGeneratedDictionary(int itemCount) throws IOException {
+        Path home = Files.createTempDirectory("dependency-checker");
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<cpe-list xmlns=\"http://cpe.mitre.org/dictionary/2.0\" xmlns:cpe-23=\"http://scap.nist.gov/schema/cpe-extension/2.3\">\n");
+        for (int i = 0; i < itemCount; i++) {
+            xml.append("  <cpe-item name=\"cpe:/a:vendor").append(i).append(":product").append(i % 40).append(":1.0\">\n")
+                    .append("    <title xml:lang=\"en-US\">Product ").append(i).append(" ").append("x".repeat(i % 17)).append("</title>\n");
+            if (i % 7 != 3) {
+                xml.append("    <references>\n")
+                        .append("      <reference href=\"https://github.com/owner").append(i % 40).append("/repo").append(i % 40).append("\">Product</reference>\n")
+                        .append("    </references>\n");
+            }
+            xml.append("    <cpe-23:cpe23-item name=\"cpe:2.3:a:vendor").append(i).append(":product").append(i % 40).append(":1.0:*:*:*:*:*:*:*\"/>\n")
+                    .append("  </cpe-item>\n");
+        }
+        xml.append("</cpe-list>\n");
+        Files.writeString(home.resolve("official-cpe-dictionary_v2.3.xml"), xml.toString());
+        Settings settings = new Settings();
+        settings.homeFolder = home.toUri().toURL();
+        return settings;
+    }
+
+    private static List<String> readItems(Path path, List<long[]> ranges) throws IOException {
+        List<String> items = new ArrayList<>();
+        CPEDictionaryReader.ItemHandler handler = item -> {
+            items.add(item.name + " " + item.title + " " + item.cpe23 + " " + item.references);
+            return true;
+        };
+        if (ranges == null) {
+            CPEDictionaryReader.read(path, handler);
+        } else {
+            for (long[] range : ranges) {
+                CPEDictionaryReader.readRange(path, range, handler);
+            }
+        }
+        return items;
+    }
+
+    private static Map<String, String> parseRange(Path path, long[] range) throws IOException {
+        Map<String, String> found = new LinkedHashMap<>();
+        CPEDictionaryReader.readRange(path, range, item -> {
+            String name = CPEFinder.nameFromReferences(item);
+            if (name != null && item.cpe23 != null) {
+                found.putIfAbsent(name, CPEFinder.cleanCPE(item.cpe23));
+            }
+            return true;
+        });
+        return found;
+    }
+
+    // leaves the files of a build that merged ranges 0 and 1, completed range 3 and died while writing range 4
+    private static void abandonBuild(Settings settings) throws IOException, URISyntaxException {
+        Path home = Paths.get(settings.homeFolder.toURI());
+        Path path = home.resolve("official-cpe-dictionary_v2.3.xml");
+        List<long[]> ranges = CPEDictionaryReader.split(path, 8);
+
+        CPEFinder cpeFinder = new CPEFinder(settings);
+        for (int i = 0; i < 2; i++) {
+            for (Map.Entry<String, String> entry : parseRange(path, ranges.get(i)).entrySet()) {
+                cpeFinder.cpeDictionary.dictionary.putIfAbsent(entry.getKey(), new CPE(entry.getValue()));
+            }
+        }
+        cpeFinder.save();
+        cpeFinder.close();
+
+        try (CPEBuildJournal journal = new CPEBuildJournal(home)) {
+            journal.start(Files.size(path), Files.getLastModifiedTime(path).toMillis(), ranges);
+            Map<String, String> done = parseRange(path, ranges.get(3));
+            // only in the journal, so it shows whether the range was replayed or parsed again
+            done.put("journal/only", "cpe:2.3:a:journal:only:*:*:*:*:*:*:*:*");
+            journal.append(3, done);
+            journal.checkpoint(2, Map.of(3, done));
+        }
+        Files.writeString(home.resolve("cpes.journal"), "4\tpartial/only\tcpe:2.3:a:partial:only:*:*:*:*:*:*:*:*\n4\towner", StandardOpenOption.APPEND);
+    }
+
+    private static Map<String, String> foundCPEs(CPEFinder cpeFinder) {
+        Map<String, String> found = new HashMap<>();
+        for (Map.Entry<String, CPE> entry : cpeFinder.cpeDictionary.dictionary.entrySet()) {
+            found.put(entry.getKey(), entry.getValue().value);
+        }
+        return found;
+    }
+
+    @Test
+    public void testFindCPEFromIndex() throws IOException, URISyntaxException {
+        Settings settings = settingsWithDictionary();
+        CPEFinder cpeFinder = new CPEFinder(settings);
+
+        assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("grpc/grpc-swift"));
+        assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("alamofire/alamofire"));
+        assertNull(cpeFinder.findCPEForLibrary("unknown/library"));
+        // not in the index, so not searched in the dictionary either
+        assertNull(cpeFinder.findCPEForLibrary("grpc/grpc"));
+        assertTrue(Files.exists(Paths.get(settings.homeFolder.toURI()).resolve("cpe-index.bin")));
+
+        // repository names are matched regardless of case and kept in lowercase
+        Map<String, String> cpes = cpeFinder.findCPEsForLibraries(List.of("GRPC/gRPC-Swift"));
+        assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpes.get("GRPC/gRPC-Swift"));
+        assertFalse(cpeFinder.cpeDictionary.dictionary.containsKey("GRPC/gRPC-Swift"));
+        assertNotNull(cpeFinder.cpeDictionary.dictionary.get("grpc/grpc-swift").value);
+        cpeFinder.close();
+    }
+
+    @Test
+    public void testFindCPEsForLibraries() throws IOException, URISyntaxException {
+        CPEFinder cpeFinder = new CPEFinder(settingsWithDictionary());
+
+        Map<String, String> cpes = cpeFinder.findCPEsForLibraries(List.of("alamofire/alamofire", "grpc/grpc", "missing/library", "sdwebimage"));
+        assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpes.get("alamofire/alamofire"));
+        // the index is complete, a name that is not in it is not searched in the dictionary
+        assertNull(cpes.get("grpc/grpc"));
+        assertEquals(1, cpes.size());
+        assertNull(cpeFinder.cpeDictionary.dictionary.get("grpc/grpc").value);
+
+        assertTrue(cpeFinder.cpeDictionary.dictionary.containsKey("missing/library"));
+        assertNull(cpeFinder.cpeDictionary.dictionary.get("missing/library").value);
+        assertTrue(cpeFinder.cpeDictionary.dictionary.containsKey("sdwebimage"));
+        cpeFinder.close();
+    }
+
+    @Test
+    public void testFindCPEForPodName() throws IOException, URISyntaxException {
+        Settings settings = settingsWithDictionary();
+        CPEFinder cpeFinder = new CPEFinder(settings);
+
+        assertEquals("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("Alamofire"));
+        assertEquals("cpe:2.3:a:grpc:grpc-swift:*:*:*:*:*:*:*:*", cpeFinder.findCPEForLibrary("gRPC-Swift"));
+        assertNull(cpeFinder.findCPEForLibrary("AlamofireImage"));
+        assertTrue(Files.exists(Paths.get(settings.homeFolder.toURI()).resolve("cpe-products.bin")));
+        cpeFinder.close();
+    }
+
+    @Test
+    public void testCandidateRanking() throws IOException {
+        Path path = Files.createTempDirectory("dependency-checker").resolve("products.bin");
+        Map<String, String> products = new HashMap<>();
+        products.put("sdwebimage_project:sdwebimage", "cpe:2.3:a:sdwebimage_project:sdwebimage:*:*:*:*:*:*:*:*");
+        products.put("sdwebimage:sdwebimage", "cpe:2.3:a:sdwebimage:sdwebimage:*:*:*:*:*:*:*:*");
+        products.put("sdwebimage:sdwebimageswiftui", "cpe:2.3:a:sdwebimage:sdwebimageswiftui:*:*:*:*:*:*:*:*");
+        products.put("example:webimage", "cpe:2.3:a:example:webimage:*:*:*:*:*:*:*:*");
+        CPECandidateIndex.write(path, products);
+
+        try (CPECandidateIndex index = CPECandidateIndex.open(path)) {
+            List<CPECandidateIndex.Candidate> candidates = index.candidates("SDWebImage", 3);
+            assertEquals(3, candidates.size());
+            assertEquals("sdwebimage:sdwebimage", candidates.get(0).product);
+            assertEquals(1.0, candidates.get(0).score);
+            assertEquals("sdwebimage_project:sdwebimage", candidates.get(1).product);
+            assertTrue(candidates.get(2).score < 1.0);
+            assertEquals("cpe:2.3:a:sdwebimage:sdwebimage:*:*:*:*:*:*:*:*", index.find("sdwebimage"));
+            assertEquals("cpe:2.3:a:sdwebimage:sdwebimageswiftui:*:*:*:*:*:*:*:*", index.find("SDWebImageSwiftUI"));
+            assertNull(index.find("kingfisher"));
+        }
+    }
+
+    @Test
+    public void testCandidateRejectsSimilarAndAmbiguousProducts() throws IOException {
+        Path path = Files.createTempDirectory("dependency-checker").resolve("products.bin");
+        Map<String, String> products = new HashMap<>();
+        products.put("alamofire:alamofire-image", "cpe:2.3:a:alamofire:alamofire-image:*:*:*:*:*:*:*:*");
+        products.put("acme:widget", "cpe:2.3:a:acme:widget:*:*:*:*:*:*:*:*");
+        products.put("example:widget", "cpe:2.3:a:example:widget:*:*:*:*:*:*:*:*");
+        products.put("kingfisher_project:kingfisher", "cpe:2.3:a:kingfisher_project:kingfisher:*:*:*:*:*:*:*:*");
+        products.put("other:kingfisher", "cpe:2.3:a:other:kingfisher:*:*:*:*:*:*:*:*");
+        products.put("apple:swift-nio", "cpe:2.3:a:apple:swift-nio:*:*:*:*:*:*:*:*");
+        CPECandidateIndex.write(path, products);
+
+        try (CPECandidateIndex index = CPECandidateIndex.open(path)) {
+            // a vendor of the name alone is not enough, nor is a similar product
+            assertNull(index.find("Alamofire"));
+            assertNull(index.find("AlamofireImages"));
+            assertNull(index.find("swift-nio-ssl"));
+            // two vendors have a product of the name and neither is named after it
+            assertNull(index.find("Widget"));
+            assertEquals("cpe:2.3:a:kingfisher_project:kingfisher:*:*:*:*:*:*:*:*", index.find("Kingfisher"));
+            // the only product of the name
+            assertEquals("cpe:2.3:a:apple:swift-nio:*:*:*:*:*:*:*:*", index.find("SwiftNIO"));
+            assertEquals("cpe:2.3:a:alamofire:alamofire-image:*:*:*:*:*:*:*:*", index.find("AlamofireImage"));
+        }
+
+        // the name index is written again when it is missing
+        Files.delete(path.resolveSibling("products-names.bin"));
+        try (CPECandidateIndex index = CPECandidateIndex.open(path)) {
+            assertNull(index.find("Widget"));
+            assertEquals("cpe:2.3:a:apple:swift-nio:*:*:*:*:*:*:*:*", index.find("swift_nio"));
+        }
+    }
+
+    @Test
+    public void testMissesAreNotSearchedAgain() throws IOException, URISyntaxException {
+        Settings settings = settingsWithDictionary();
+        CPEFinder cpeFinder = new CPEFinder(settings);
+        cpeFinder.cpeOnlyFromFile = false;
+
+        assertNull(cpeFinder.findCPEForLibrary("internal/library"));
+        CPE miss = cpeFinder.cpeDictionary.dictionary.get("internal/library");
+        assertNotNull(miss.lastChecked);
+        assertEquals(1, miss.misses);
+
+        // within the interval the miss is answered from cpes.json
+        assertNull(cpeFinder.findCPEForLibrary("internal/library"));
+        assertSame(miss, cpeFinder.cpeDictionary.dictionary.get("internal/library"));
+
+        // a changed dictionary is searched again
+        cpeFinder.cpeDictionary.dictionaryChanged = new Date(miss.lastChecked.getTime() + 1);
+        assertNull(cpeFinder.findCPEForLibrary("internal/library"));
+        assertEquals(2, cpeFinder.cpeDictionary.dictionary.get("internal/library").misses);
+        cpeFinder.close();
+    }
+
+    @Test
+    public void testMissBackoff() {
+        long day = 24L * 60 * 60 * 1000;
+        Date checked = new Date(0);
+        CPE miss = CPE.miss(checked, 3);
+
+        assertFalse(miss.shouldRetry(null, day, 30 * day, new Date(4 * day - 1)));
+        assertTrue(miss.shouldRetry(null, day, 30 * day, new Date(4 * day)));
+        assertTrue(miss.shouldRetry(null, day, 2 * day, new Date(2 * day)));
+        assertTrue(miss.shouldRetry(new Date(1), day, 30 * day, new Date(2)));
+        assertTrue(new CPE(null).shouldRetry(null, day, 30 * day, new Date(0)));
+        assertFalse(new CPE("cpe:2.3:a:acme:widget").shouldRetry(new Date(1), day, 30 * day, new Date(day)));
+    }
+
+    @Test
+    public void testUpdateInterval() throws IOException, URISyntaxException {
+        long hour = 60L * 60 * 1000;
+        CPEFinder cpeFinder = new CPEFinder(settingsWithDictionary());
+
+        // cpeTimeInterval is a week in seconds
+        cpeFinder.cpeDictionary.lastUpdated = new Date(System.currentTimeMillis() - hour);
+        assertFalse(cpeFinder.shouldUpdate());
+        cpeFinder.cpeDictionary.lastUpdated = new Date(System.currentTimeMillis() - 8 * 24 * hour);
+        assertTrue(cpeFinder.shouldUpdate());
+        cpeFinder.close();
+    }
+
+    @Test
+    public void testSortedIndex() throws IOException {
+        Path path = Files.createTempDirectory("dependency-checker").resolve("index.bin");
+        Map<String, String> entries = new HashMap<>();
+        entries.put("b/b", "2");
+        entries.put("a/a", "1");
+        entries.put("a/ab", "3");
+        SortedIndex.write(path, entries);
+
+        try (SortedIndex index = SortedIndex.open(path)) {
+            assertEquals(3, index.size());
+            assertEquals("1", index.get("a/a"));
+            assertEquals("3", index.get("a/ab"));
+            assertEquals("2", index.get("b/b"));
+            assertNull(index.get("a/"));
+            assertNull(index.get("c/c"));
+        }
+    }
+
+    @Test
+    public void testSplitReadMatchesSequentialRead() throws IOException, URISyntaxException {
+        Path generated = Paths.get(settingsWithGeneratedDictionary(300).homeFolder.toURI()).resolve("official-cpe-dictionary_v2.3.xml");
+        for (Path path : List.of(dictionary, generated)) {
+            List<String> sequential = readItems(path, null);
+            // 1000 ranges are smaller than one cpe-item for both files
+            for (int count : List.of(1, 2, 3, 8, 1000)) {
+                List<long[]> ranges = CPEDictionaryReader.split(path, count);
+                assertTrue(ranges.size() <= Math.min(count, sequential.size()));
+                for (int i = 1; i < ranges.size(); i++) {
+                    assertEquals(ranges.get(i - 1)[1], ranges.get(i)[0]);
+                }
+                assertEquals(sequential, readItems(path, ranges), path.getFileName() + " split into " + count);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBuildKeepsFirstItem() throws IOException, URISyntaxException {
+        Map<String, String> expected = null;
+        for (int parallelism : List.of(1, 2, 3, 8, 1000)) {
+            Settings settings = settingsWithGeneratedDictionary(300);
+            settings.cpeParseParallelism = parallelism;
+            CPEFinder cpeFinder = new CPEFinder(settings);
+            cpeFinder.generateDictionaryWithAllCPEs();
+            Map<String, String> found = foundCPEs(cpeFinder);
+            if (expected == null) {
+                expected = found;
+                assertEquals(40, found.size());
+                // the first item with the name, the same cpe as the index lookup
+                assertEquals("cpe:2.3:a:vendor0:product0:*:*:*:*:*:*:*:*", found.get("owner0/repo0"));
+                assertEquals("cpe:2.3:a:vendor43:product3:*:*:*:*:*:*:*:*", found.get("owner3/repo3"));
+                assertEquals(new CPEFinder(settingsWithGeneratedDictionary(300)).findCPEForLibrary("owner3/repo3"), found.get("owner3/repo3"));
+            } else {
+                assertEquals(expected, found, "parallelism " + parallelism);
+            }
+            cpeFinder.close();
+        }
+    }
+
+    @Test
+    public void testResumeBuild() throws IOException, URISyntaxException {
+        Settings clean = settingsWithGeneratedDictionary(300);
+        clean.cpeParseParallelism = 2;
+        CPEFinder cpeFinder = new CPEFinder(clean);
+        cpeFinder.generateDictionaryWithAllCPEs();
+        Map<String, String> expected = foundCPEs(cpeFinder);
+        cpeFinder.close();
+
+        Settings settings = settingsWithGeneratedDictionary(300);
+        settings.cpeParseParallelism = 2;
+        abandonBuild(settings);
+        cpeFinder = new CPEFinder(settings);
+        cpeFinder.generateDictionaryWithAllCPEs();
+        Map<String, String> resumed = foundCPEs(cpeFinder);
+        cpeFinder.close();
+
+        // range 3 comes from the journal, range 4 had no #done line and was parsed again
+        assertEquals("cpe:2.3:a:journal:only:*:*:*:*:*:*:*:*", resumed.remove("journal/only"));
+        assertFalse(resumed.containsKey("partial/only"));
+        assertEquals(expected, resumed);
+        Path home = Paths.get(settings.homeFolder.toURI());
+        assertFalse(Files.exists(home.resolve("cpes.journal")));
+        assertFalse(Files.exists(home.resolve("cpes.checkpoint")));
+    }
+
+    @Test
+    public void testChangedDictionaryInvalidatesCheckpoint() throws IOException, URISyntaxException {
+        Settings settings = settingsWithGeneratedDictionary(300);
+        Path home = Paths.get(settings.homeFolder.toURI());
+        Path path = home.resolve("official-cpe-dictionary_v2.3.xml");
+        abandonBuild(settings);
+        long size = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        try (CPEBuildJournal journal = new CPEBuildJournal(home)) {
+            assertFalse(journal.resume(size + 1, modified));
+        }
+        try (CPEBuildJournal journal = new CPEBuildJournal(home)) {
+            assertFalse(journal.resume(size, modified + 1000));
+        }
+        try (CPEBuildJournal journal = new CPEBuildJournal(home)) {
+            assertTrue(journal.resume(size, modified));
+            assertEquals(2, journal.checkpoint.mergedRanges);
+            assertEquals(List.of(3), List.copyOf(journal.completed.keySet()));
+        }
+
+        // a dictionary that was replaced after the crash is built from scratch
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified + 1000));
+        settings.cpeParseParallelism = 2;
+        CPEFinder cpeFinder = new CPEFinder(settings);
+        cpeFinder.generateDictionaryWithAllCPEs();
+        assertFalse(cpeFinder.cpeDictionary.dictionary.containsKey("journal/only"));
+        assertEquals(40, foundCPEs(cpeFinder).size());
+        cpeFinder.close();
+    }
+}
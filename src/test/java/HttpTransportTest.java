@@ -0,0 +1,80 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpTransportTest {
+
+    @Test
+    public void testStalledBodyTimesOut() throws IOException, InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/feed", exchange -> {
+            exchange.sendResponseHeaders(200, 1000);
+            OutputStream body = exchange.getResponseBody();
+            body.write(new byte[100]);
+            body.flush();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            HttpTransport transport = new HttpTransport(Duration.ofMillis(300));
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/feed"));
+            HttpTransport.Response response = transport.send(request, false);
+            assertEquals(200, response.statusCode);
+
+            long startTime = System.currentTimeMillis();
+            try (InputStream body = response.body) {
+                // time spent between reads does not count
+                assertEquals(100, body.readNBytes(100).length);
+                Thread.sleep(600);
+                assertThrows(HttpTimeoutException.class, () -> body.read(new byte[100]));
+            }
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+        } finally {
+            release.countDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testAbandonedBodyLeavesNoTimeout() throws IOException, InterruptedException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            exchange.sendResponseHeaders(200, 1000);
+            exchange.getResponseBody().write(new byte[1000]);
+            exchange.close();
+        });
+        server.start();
+        try {
+            HttpTransport transport = new HttpTransport(Duration.ofMillis(300));
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/feed"));
+            for (int i = 0; i < 5; i++) {
+                HttpTransport.Response response = transport.send(request, false);
+                // read part of the body and drop it without closing
+                assertEquals(100, response.body.readNBytes(100).length);
+            }
+            assertEquals(0, IdleTimeoutInputStream.pendingTimeouts());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+    private static final int PERMITS = 3;
+    private static final long WINDOW = 1000;
+
+    @Test
+    public void testWindow() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(2, 300);
+        long startTime = System.currentTimeMillis();
+        rateLimiter.acquire();
+        rateLimiter.acquire();
+        assertTrue(System.currentTimeMillis() - startTime < 300);
+        rateLimiter.acquire();
+        assertTrue(System.currentTimeMillis() - startTime >= 300);
+    }
+
+    @Test
+    public void testSharedBetweenProcesses() throws Exception {
+        Path stateFile = Files.createTempDirectory("dependency-checker").resolve("nvd-rate.state");
+        List<Long> requests = Collections.synchronizedList(new ArrayList<>());
+        List<Long> permits = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cves", exchange -> {
+            requests.add(System.currentTimeMillis());
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/cves";
+            List<Process> processes = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Client.class.getName(), stateFile.toString(), url, "3")
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start());
+            }
+            for (Process process : processes) {
+                for (String line : new String(process.getInputStream().readAllBytes()).split("\n")) {
+                    permits.add(Long.parseLong(line.trim()));
+                }
+                assertEquals(0, process.waitFor());
+            }
+        } finally {
+            server.stop(0);
+        }
+
+        // no window holds more than the budget across the processes
+        assertEquals(9, requests.size());
+        assertEquals(9, permits.size());
+        Collections.sort(permits);
+        for (int i = PERMITS; i < permits.size(); i++) {
+            // the clients print the time right after taking the permit, allow a little for that
+            assertTrue(permits.get(i) - permits.get(i - PERMITS) >= WINDOW - 25, "permits " + permits);
+        }
+    }
+
+    /**
+     * Process that makes requests within the rate limit of a shared state file.
+     */
+    public static class Client {
+        public static void main(String[] args) throws IOException, InterruptedException {
+            RateLimiter rateLimiter = new RateLimiter(PERMITS, WINDOW, new File(args[0]).toPath());
+            for (int i = 0; i < Integer.parseInt(args[2]); i++) {
+                rateLimiter.acquire();
+                System.out.println(System.currentTimeMillis());
+                HttpURLConnection connection = (HttpURLConnection) new URL(args[1]).openConnection();
+                if (connection.getResponseCode() != 204) {
+                    System.exit(1);
+                }
+            }
+        }
+    }
+}
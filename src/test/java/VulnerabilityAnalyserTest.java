@@ -0,0 +1,644 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VulnerabilityAnalyserTest {
+    private static final Path responses = Paths.get(System.getProperty("user.dir"), "src/test/java/TestFiles/NVDCVEApiTest");
+
+    private final List<String> apiKeys = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+
+    private long responseDelay = 0;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private HttpServer startServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/cves", exchange -> {
+            apiKeys.add(String.valueOf(exchange.getRequestHeaders().getFirst("apiKey")));
+            String query = exchange.getRequestURI().getRawQuery();
+            queries.add(query);
+            try {
+                Thread.sleep(responseDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            String file = query.contains("lastModStartDate") ? (query.endsWith("startIndex=0") ? "modified.json" : "modified-1.json")
+                    : !query.contains("openssl") ? "alamofire.json"
+                    : query.endsWith("startIndex=0") ? "openssl-0.json" : "openssl-1.json";
+            byte[] response = Files.readAllBytes(responses.resolve(file));
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(response);
+                }
+                response = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private Settings settings(HttpServer server) throws IOException {
+        Settings settings = new Settings();
+        settings.homeFolder = Files.createTempDirectory("dependency-checker").toUri().toURL();
+        settings.cveApiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/cves";
+        return settings;
+    }
+
+    @Test
+    public void testQueryWithApiKey() throws IOException {
+        HttpServer server = startServer();
+        try {
+            Settings settings = settings(server);
+            settings.nvdApiKey = "test-key";
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings);
+
+            long startTime = System.currentTimeMillis();
+            List<CVEData> vulnerabilities = analyser.query("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*");
+            analyser.query("cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*");
+            // within the budget requests are not delayed
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+
+            assertEquals(1, vulnerabilities.size());
+            assertEquals("CVE-2020-0001", vulnerabilities.get(0).cve.cveId);
+            assertEquals(List.of("test-key", "test-key"), apiKeys);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testConcurrentQueries() throws IOException {
+        HttpServer server = startServer();
+        responseDelay = 300;
+        try {
+            Settings settings = settings(server);
+            settings.nvdRequestsPerWindow = 50;
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings);
+
+            long startTime = System.currentTimeMillis();
+            List<CompletableFuture<List<CVEData>>> queries = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                queries.add(analyser.queryVulnerabilitiesForAsync("cpe:2.3:a:vendor" + i + ":product:*:*:*:*:*:*:*:*"));
+            }
+            for (CompletableFuture<List<CVEData>> query : queries) {
+                assertEquals(1, query.join().size());
+            }
+            // five slow responses in parallel, not one after another
+            assertTrue(System.currentTimeMillis() - startTime < 5 * 300);
+            assertEquals(5, analyser.vulnerabilities.size());
+
+            // answered from the stored data
+            assertEquals(1, analyser.queryVulnerabilitiesFor("cpe:2.3:a:vendor0:product:*:*:*:*:*:*:*:*").size());
+            assertEquals(5, apiKeys.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testQueuedQueriesDoNotBlockThreads() throws IOException, InterruptedException {
+        HttpServer server = startServer();
+        try {
+            Settings settings = settings(server);
+            settings.nvdRequestsPerWindow = 1;
+            settings.nvdRateWindow = 1L;
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings);
+
+            List<CompletableFuture<List<CVEData>>> queries = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                queries.add(analyser.queryVulnerabilitiesForAsync("cpe:2.3:a:vendor" + i + ":product:*:*:*:*:*:*:*:*"));
+            }
+            Thread.sleep(300);
+            // the queries wait for their permits in a queue, not each on a thread of its own
+            long waiting = Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals("nvd-rate-limit")).count();
+            assertEquals(1, waiting);
+            for (CompletableFuture<List<CVEData>> query : queries) {
+                assertEquals(1, query.join().size());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testConcurrentQueriesForOneCpe() throws IOException {
+        HttpServer server = startServer();
+        responseDelay = 300;
+        String cpe = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        try {
+            Settings settings = settings(server);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                List<CompletableFuture<List<CVEData>>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(CompletableFuture.supplyAsync(() -> analyser.queryVulnerabilitiesFor(cpe), executor));
+                }
+                for (CompletableFuture<List<CVEData>> result : results) {
+                    assertEquals(1, result.join().size());
+                }
+                assertEquals(1, analyser.vulnerabilities.size());
+            } finally {
+                executor.shutdown();
+            }
+            // one request shared by all callers
+            assertEquals(1, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testPagination() throws IOException {
+        HttpServer server = startServer();
+        try {
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings(server));
+
+            List<CVEData> vulnerabilities = analyser.query("cpe:2.3:a:openssl:openssl:*:*:*:*:*:*:*:*");
+            assertEquals(3, vulnerabilities.size());
+            assertEquals("CVE-2021-1001", vulnerabilities.get(0).cve.cveId);
+            assertEquals("CVE-2021-1003", vulnerabilities.get(2).cve.cveId);
+            assertEquals(2, queries.size());
+            assertTrue(queries.get(1).endsWith("startIndex=2"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStreamingDecoderMatchesMapDecoding() throws IOException {
+        String legacy = "{\"totalResults\": 1, \"vulnerabilities\": [{\"cve\": {\"id\": \"CVE-2019-0001\","
+                + " \"descriptions\": [{\"lang\": \"en\", \"value\": \"first\"}, {\"lang\": \"es\", \"value\": \"primero\"}],"
+                + " \"problemtype\": {\"problemtype_data\": [{\"description\": [{\"lang\": \"en\", \"value\": \"CWE-79\"}]}]},"
+                + " \"references\": [{\"reference_data\": [{\"url\": \"https://example.org\", \"name\": \"example\", \"tags\": [\"Patch\"]}]}],"
+                + " \"configurations\": [{\"nodes\": [{\"operator\": \"AND\", \"children\": [{\"nodes\": [{\"cpeMatch\": [{\"vulnerable\": true,"
+                + " \"criteria\": \"cpe:2.3:a:example:library:1.2:beta:*:*:*:*:*:*\"}]}]}]}]}]}}]}";
+
+        List<byte[]> responses = new ArrayList<>();
+        responses.add(legacy.getBytes(StandardCharsets.UTF_8));
+        for (String file : List.of("alamofire.json", "openssl-0.json", "openssl-1.json")) {
+            responses.add(Files.readAllBytes(VulnerabilityAnalyserTest.responses.resolve(file)));
+        }
+
+        Gson gson = new Gson();
+        for (byte[] response : responses) {
+            Map<String, Object> json = gson.fromJson(new String(response, StandardCharsets.UTF_8), new TypeToken<Map<String, Object>>() {
+            }.getType());
+            List<CVEData> fromMaps = new ArrayList<>();
+            for (Map<String, Object> vulnerability : (List<Map<String, Object>>) json.get("vulnerabilities")) {
+                fromMaps.add(new CVEData(vulnerability));
+            }
+
+            CVEPage page = NVDResponseReader.readPage(new ByteArrayInputStream(response));
+            assertEquals(((Double) json.get("totalResults")).intValue(), page.totalResults);
+            assertEquals(gson.toJson(fromMaps), gson.toJson(page.vulnerabilities));
+        }
+    }
+
+    @Test
+    public void testLazyDescriptions() throws IOException {
+        String response = "{\"totalResults\": 1, \"vulnerabilities\": [{\"cve\": {\"id\": \"CVE-2024-0002\","
+                + " \"descriptions\": [{\"lang\": \"en\", \"value\": \"<script> in name\"}, {\"lang\": \"es\", \"value\": \"segundo\"}],"
+                + " \"references\": [{\"url\": \"https://example.org\", \"source\": \"cve@mitre.org\", \"tags\": [\"Patch\"]}]}}]}";
+        CVE cve = NVDResponseReader.readPage(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8))).vulnerabilities.get(0).cve;
+        assertEquals("en: <script> in name, es: segundo", cve.description());
+        assertEquals(1, cve.references().size());
+        assertEquals("cve@mitre.org", cve.references().get(0).refSource);
+        assertEquals(List.of("Patch"), cve.references().get(0).tags);
+
+        // stored and read back as the same json
+        Gson gson = new Gson();
+        CVE stored = gson.fromJson(gson.toJson(cve), CVE.class);
+        assertEquals(cve.description(), stored.description());
+        assertEquals(gson.toJson(cve), gson.toJson(stored));
+
+        // cves stored by earlier versions
+        CVE legacy = gson.fromJson("{\"cveId\": \"CVE-2019-0001\", \"description\": \"en: first\","
+                + " \"references\": [{\"url\": \"https://example.org\", \"refSource\": \"MISC\", \"tags\": []}]}", CVE.class);
+        assertEquals("CVE-2019-0001", legacy.cveId);
+        assertEquals("en: first", legacy.description());
+        assertEquals("MISC", legacy.references().get(0).refSource);
+    }
+
+    @Test
+    public void testRawJsonCopy() throws IOException {
+        String json = "[{\"url\": \"https://example.org/?a=1&b=<2>\", \"tags\": [], \"score\": 7.50, \"name\": null,"
+                + " \"nested\": {\"flag\": true, \"list\": [1, \"\\u00e9\\n\"]}}, null, \"legacy\"]";
+        byte[] copied = CVE.raw(new JsonReader(new StringReader(json)));
+        assertEquals(new String(CVE.raw(JsonParser.parseString(json)), StandardCharsets.UTF_8), new String(copied, StandardCharsets.UTF_8));
+        assertNull(CVE.raw(new JsonReader(new StringReader("null"))));
+    }
+
+    @Test
+    public void testQueryFromMirror() throws IOException {
+        Path feeds = Files.createTempDirectory("nvd-feeds");
+        Files.copy(responses.resolve("openssl-0.json"), feeds.resolve("nvdcve-2.0-2021.json"));
+        try (OutputStream feed = new GZIPOutputStream(Files.newOutputStream(feeds.resolve("nvdcve-2.0-2022.json.gz")))) {
+            feed.write(Files.readAllBytes(responses.resolve("openssl-1.json")));
+        }
+        String modified = Files.readString(responses.resolve("openssl-0.json"))
+                .replaceFirst("2024-02-01T10:00:00.000", "2024-03-01T10:00:00.000");
+        Files.writeString(feeds.resolve("nvdcve-2.0-modified.json"), modified);
+
+        Settings settings = new Settings();
+        settings.homeFolder = Files.createTempDirectory("dependency-checker").toUri().toURL();
+        settings.cveApiUrl = "http://127.0.0.1:1/cves";
+        settings.nvdMirror = true;
+        try (NVDMirror mirror = NVDMirror.forSettings(settings)) {
+            mirror.build(feeds, 2);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings);
+        List<CVEData> vulnerabilities = analyser.query("cpe:2.3:a:openssl:openssl:1.1.1:*:*:*:*:*:*:*");
+        assertEquals(3, vulnerabilities.size());
+        for (CVEData vulnerability : vulnerabilities) {
+            String expected = vulnerability.cve.cveId.equals("CVE-2021-1001") ? "2024-03-01T10:00:00.000" : "2024-02-01T10:00:00.000";
+            assertEquals(expected, vulnerability.lastModifiedDate);
+            assertFalse(vulnerability.configuration.getAffectedVersions().isEmpty());
+        }
+        assertTrue(analyser.query("cpe:2.3:a:example:library:1.0:*:*:*:*:*:*:*").isEmpty());
+
+        // the superseded revision is not kept in the data file
+        String data = Files.readString(Paths.get(URI.create(settings.homeFolder.toString())).resolve("nvd-mirror/cves.data"));
+        assertEquals(1, data.split("\"CVE-2021-1001\"", -1).length - 1);
+    }
+
+    @Test
+    public void testVulnerabilityStore() throws IOException {
+        HttpServer server = startServer();
+        try {
+            Settings settings = settings(server);
+            Path homeFolder = Paths.get(settings.homeFolder.getPath());
+            Files.writeString(homeFolder.resolve("vulnerabilities.json"), "{\"dictionary\": {\"cpe:2.3:a:legacy:product:*:*:*:*:*:*:*:*\": "
+                    + "{\"lastUpdated\": " + System.currentTimeMillis() / 1000 + ", \"vulnerabilities\": []}}}");
+
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertEquals(1, analyser.vulnerabilities.size());
+                assertTrue(analyser.queryVulnerabilitiesFor("cpe:2.3:a:legacy:product:*:*:*:*:*:*:*:*").isEmpty());
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(1, analyser.queryVulnerabilitiesFor("cpe:2.3:a:vendor" + i + ":product:*:*:*:*:*:*:*:*").size());
+                }
+            }
+            assertEquals(3, queries.size());
+
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertEquals(4, analyser.vulnerabilities.size());
+                // the stub returns the same cve for every cpe, it is stored once
+                assertEquals(1, analyser.vulnerabilities.cveCount());
+                List<CVEData> vulnerabilities = analyser.queryVulnerabilitiesFor("cpe:2.3:a:vendor1:product:*:*:*:*:*:*:*:*");
+                assertEquals(1, vulnerabilities.size());
+                assertFalse(vulnerabilities.get(0).configuration.getAffectedVersions().isEmpty());
+                assertFalse(analyser.vulnerabilities.isChanged());
+            }
+            assertEquals(3, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static VulnerabilityData storedCVE(String cveId, String lastModified, int descriptionLength) {
+        CVEData cveData = new CVEData();
+        cveData.lastModifiedDate = lastModified;
+        cveData.cve = new CVE();
+        cveData.cve.cveId = cveId;
+        cveData.cve.descriptions = CVE.raw("x".repeat(descriptionLength));
+        return new VulnerabilityData(new ArrayList<>(List.of(cveData)));
+    }
+
+    @Test
+    public void testStoreSharedBetweenStores() throws IOException {
+        Path folder = Files.createTempDirectory("dependency-checker").resolve("vulnerabilities");
+        VulnerabilityStore first = new VulnerabilityStore(folder);
+        first.put("cpe:2.3:a:vendor:first:*:*:*:*:*:*:*:*", storedCVE("CVE-2024-0001", "1", 10));
+        first.save();
+
+        // both read the saved indexes, then save one after another
+        VulnerabilityStore second = new VulnerabilityStore(folder);
+        assertNotNull(second.get("cpe:2.3:a:vendor:first:*:*:*:*:*:*:*:*"));
+        first.put("cpe:2.3:a:vendor:second:*:*:*:*:*:*:*:*", storedCVE("CVE-2024-0002", "1", 10));
+        second.put("cpe:2.3:a:vendor:third:*:*:*:*:*:*:*:*", storedCVE("CVE-2024-0003", "1", 10));
+        first.save();
+        second.save();
+        first.close();
+        second.close();
+
+        try (VulnerabilityStore store = new VulnerabilityStore(folder)) {
+            assertEquals(3, store.size());
+            assertEquals(3, store.cveCount());
+            for (String product : List.of("first", "second", "third")) {
+                assertEquals(1, store.get("cpe:2.3:a:vendor:" + product + ":*:*:*:*:*:*:*:*").vulnerabilities.size());
+            }
+        }
+        // only the files named in store.json are left
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(List.of("cves-3.index", "entries-1.data", "entries-3.index", "store.json", "store.lock"),
+                    files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testStoreCompaction() throws IOException {
+        Path folder = Files.createTempDirectory("dependency-checker").resolve("vulnerabilities");
+        String cpe = "cpe:2.3:a:vendor:product:*:*:*:*:*:*:*:*";
+        VulnerabilityStore writer = new VulnerabilityStore(folder);
+        writer.put(cpe, storedCVE("CVE-2024-0001", "0", 200 * 1024));
+        writer.save();
+        VulnerabilityStore reader = new VulnerabilityStore(folder);
+        assertEquals("0", reader.get(cpe).vulnerabilities.get(0).lastModifiedDate);
+
+        // every change of the cve appends it again, until the replaced copies are dropped
+        for (int i = 1; i <= 10; i++) {
+            writer.put(cpe, storedCVE("CVE-2024-0001", String.valueOf(i), 200 * 1024));
+            writer.save();
+        }
+        writer.close();
+        Path dataFile = folder.resolve(new Gson().fromJson(Files.readString(folder.resolve("store.json")), StoreManifest.class).data);
+        assertFalse(dataFile.getFileName().toString().equals("entries-1.data"));
+        assertTrue(Files.size(dataFile) < 3 * 200 * 1024);
+
+        // the reader keeps its files until it opens the store again
+        assertEquals("0", reader.get(cpe).vulnerabilities.get(0).lastModifiedDate);
+        reader.close();
+        try (VulnerabilityStore store = new VulnerabilityStore(folder)) {
+            assertEquals("10", store.get(cpe).vulnerabilities.get(0).lastModifiedDate);
+        }
+    }
+
+    @Test
+    public void testMinSeverity() throws IOException {
+        HttpServer server = startServer();
+        String openssl = "cpe:2.3:a:openssl:openssl:*:*:*:*:*:*:*:*";
+        String alamofire = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        try {
+            Settings settings = settings(server);
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                List<CVEData> vulnerabilities = analyser.queryVulnerabilitiesFor(alamofire);
+                assertEquals(1, vulnerabilities.size());
+                assertEquals(7.4f, vulnerabilities.get(0).baseMetric().baseScore, 0.001);
+                assertEquals(Severity.high, vulnerabilities.get(0).baseMetric().severity);
+                // the openssl responses have no metrics, unscored cves are always kept
+                assertEquals(3, analyser.queryVulnerabilitiesForAsync(openssl, Severity.critical).join().size());
+            }
+
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                StoredVulnerabilities stored = analyser.vulnerabilities.peek(alamofire);
+                assertEquals(Severity.high, stored.summary.maxSeverity);
+                assertEquals(1, stored.summary.count(Severity.high));
+                assertEquals(3, analyser.vulnerabilities.peek(openssl).summary.unscored);
+
+                assertTrue(analyser.queryVulnerabilitiesForAsync(alamofire, Severity.critical).join().isEmpty());
+                assertEquals(1, analyser.queryVulnerabilitiesForAsync(alamofire, Severity.high).join().size());
+            }
+            assertEquals(3, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRefreshModified() throws IOException, InterruptedException {
+        HttpServer server = startServer();
+        String openssl = "cpe:2.3:a:openssl:openssl:*:*:*:*:*:*:*:*";
+        String alamofire = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        try {
+            Settings settings = settings(server);
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertEquals(3, analyser.queryVulnerabilitiesFor(openssl).size());
+                assertEquals(1, analyser.queryVulnerabilitiesFor(alamofire).size());
+                // nothing is due yet
+                assertEquals(0, analyser.refreshModified());
+            }
+            assertEquals(3, queries.size());
+
+            Thread.sleep(5);
+            settings.vulnerabilityTimeInterval = 0L;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                Date lastUpdated = analyser.vulnerabilities.get(alamofire).lastUpdated;
+                assertEquals(2, analyser.refreshModified());
+                // the modified cves come in two pages
+                assertEquals(5, queries.size());
+                assertTrue(queries.get(3).contains("lastModStartDate="));
+                assertTrue(queries.get(4).endsWith("startIndex=2"));
+
+                List<CVEData> vulnerabilities = analyser.vulnerabilities.get(openssl).vulnerabilities;
+                assertEquals(4, vulnerabilities.size());
+                assertEquals("2024-03-01T10:00:00.000", vulnerabilities.get(2).lastModifiedDate);
+                assertEquals("CVE-2024-0001", vulnerabilities.get(3).cve.cveId);
+                // CVE-2024-0001 lists alamofire only as not vulnerable
+                List<String> alamofireCves = analyser.vulnerabilities.get(alamofire).vulnerabilities.stream()
+                        .map(cveData -> cveData.cve.cveId).collect(Collectors.toList());
+                assertEquals(List.of("CVE-2020-0001", "CVE-2024-0002"), alamofireCves);
+                assertTrue(analyser.vulnerabilities.get(alamofire).lastUpdated.after(lastUpdated));
+            }
+
+            // outdated data is not swept again within a day of the last sweep
+            settings.vulnerabilityTimeInterval = new Settings().vulnerabilityTimeInterval;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertNotNull(analyser.vulnerabilities.lastSweep());
+                VulnerabilityData outdated = analyser.vulnerabilities.get(alamofire);
+                outdated.lastUpdated = new Date(System.currentTimeMillis() - 48L * 60L * 60L * 1000L);
+                analyser.vulnerabilities.put(alamofire, outdated);
+                assertEquals(0, analyser.refreshModified());
+            }
+            assertEquals(5, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws IOException, InterruptedException {
+        HttpServer server = startServer();
+        String cpe = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        try {
+            Settings settings = settings(server);
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+            }
+
+            Thread.sleep(5);
+            responseDelay = 300;
+            settings.vulnerabilityTimeInterval = 0L;
+            settings.vulnerabilityStaleWhileRevalidate = true;
+            Date lastUpdated;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                lastUpdated = analyser.vulnerabilities.get(cpe).lastUpdated;
+                long startTime = System.currentTimeMillis();
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertTrue(System.currentTimeMillis() - startTime < 300);
+            }
+            // closing waited for the one background update
+            assertEquals(2, queries.size());
+
+            Thread.sleep(5);
+            settings.vulnerabilityHardStaleInterval = 0L;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                assertTrue(analyser.vulnerabilities.get(cpe).lastUpdated.after(lastUpdated));
+                long startTime = System.currentTimeMillis();
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertTrue(System.currentTimeMillis() - startTime >= 300);
+            }
+            assertEquals(3, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDefaultIntervals() throws IOException {
+        HttpServer server = startServer();
+        String cpe = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        long hour = 60L * 60L * 1000L;
+        try {
+            Settings settings = settings(server);
+            settings.vulnerabilityStaleWhileRevalidate = true;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                List<CVEData> vulnerabilities = analyser.queryVulnerabilitiesFor(cpe);
+                assertEquals(1, queries.size());
+
+                // a few hours old data is within the day of vulnerabilityTimeInterval
+                VulnerabilityData recent = new VulnerabilityData(vulnerabilities);
+                recent.lastUpdated = new Date(System.currentTimeMillis() - 3 * hour);
+                analyser.vulnerabilities.put(cpe, recent);
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertEquals(0, analyser.refreshModified());
+                assertEquals(1, queries.size());
+
+                // two days old data is outdated, but not older than vulnerabilityHardStaleInterval
+                VulnerabilityData outdated = new VulnerabilityData(vulnerabilities);
+                outdated.lastUpdated = new Date(System.currentTimeMillis() - 48 * hour);
+                analyser.vulnerabilities.put(cpe, outdated);
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+            }
+            // updated in the background
+            assertEquals(2, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCompressedResponses() throws IOException {
+        HttpServer server = startServer();
+        try {
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings(server));
+            HttpTransport transport = HttpTransport.shared();
+            long requests = transport.requests();
+            long bytesReceived = transport.bytesReceived();
+
+            assertEquals(3, analyser.query("cpe:2.3:a:openssl:openssl:*:*:*:*:*:*:*:*").size());
+            assertEquals(2, transport.requests() - requests);
+            long size = Files.size(responses.resolve("openssl-0.json")) + Files.size(responses.resolve("openssl-1.json"));
+            assertTrue(transport.bytesReceived() - bytesReceived < size / 2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailuresKeepStoredData() throws IOException, InterruptedException {
+        HttpServer server = startServer();
+        String cpe = "cpe:2.3:a:alamofire:alamofire:*:*:*:*:*:*:*:*";
+        try {
+            Settings settings = settings(server);
+            settings.nvdRequestsPerWindow = 50;
+            settings.nvdRetries = 2;
+            settings.nvdRetryDelay = 0L;
+            settings.nvdCircuitBreakerThreshold = 3;
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                // retried after Retry-After
+                failures.set(2);
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertEquals(3, queries.size());
+            }
+
+            Thread.sleep(5);
+            settings.vulnerabilityTimeInterval = 0L;
+            failures.set(100);
+            try (VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings)) {
+                Date lastUpdated = analyser.vulnerabilities.get(cpe).lastUpdated;
+                assertEquals(1, analyser.queryVulnerabilitiesFor(cpe).size());
+                assertEquals(6, queries.size());
+                assertEquals(lastUpdated, analyser.vulnerabilities.get(cpe).lastUpdated);
+
+                // the circuit breaker is open, nothing is requested or stored
+                assertTrue(analyser.queryVulnerabilitiesFor("cpe:2.3:a:vendor:product:*:*:*:*:*:*:*:*").isEmpty());
+                assertEquals(6, queries.size());
+                assertEquals(1, analyser.vulnerabilities.size());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerStopsQueuedRequests() throws IOException {
+        HttpServer server = startServer();
+        try {
+            Settings settings = settings(server);
+            settings.nvdRequestsPerWindow = 1;
+            settings.nvdRateWindow = 1L;
+            settings.nvdRetries = 0;
+            settings.nvdCircuitBreakerThreshold = 1;
+            failures.set(100);
+            VulnerabilityAnalyser analyser = new VulnerabilityAnalyser(settings);
+
+            List<CompletableFuture<List<CVEData>>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(analyser.queryAsync("cpe:2.3:a:vendor" + i + ":product:*:*:*:*:*:*:*:*"));
+            }
+            for (CompletableFuture<List<CVEData>> result : results) {
+                assertTrue(result.join().isEmpty());
+            }
+            // the first request opened the breaker, the ones waiting for permits were not sent
+            assertEquals(1, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+}